@@ -0,0 +1,97 @@
+package org.spaceflightdynamics.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spaceflightdynamics.propagation.OrekitContext;
+import org.spaceflightdynamics.propagation.PropagationRequest;
+import org.spaceflightdynamics.utils.DataCaching;
+
+/**
+ * Cost of the caching path around a propagation: building the canonical
+ * key, encoding and decoding the result the way it is sent to memcached,
+ * and an in-process (L1) hit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CachingBenchmark {
+
+    private PropagationRequest request;
+    private HashMap<String, String> finalState;
+    private SerializingTranscoder transcoder;
+    private CachedData encoded;
+    private DataCaching dataCaching;
+
+    @Setup
+    public void setUp() {
+        OrekitContext.getInstance();
+
+        Map<String, String> parms = new HashMap<>();
+        parms.put("t0", "2010-05-28T12:00:00.000");
+        parms.put("tf", "2010-05-29T12:00:00.000");
+        parms.put("r0", "[3198022.67,2901879.73,5142928.95]");
+        parms.put("v0", "[-6129.640631,4489.647187,1284.511245]");
+        request = PropagationRequest.parse(parms);
+
+        finalState = new HashMap<>();
+        finalState.put("rf", "[-5172374.525508,-3801554.175009,-3225856.620153]");
+        finalState.put("vf", "[4271.815837,-3758.713113,-1936.279520]");
+        finalState.put("tf", "2010-05-29T12:00:00.000");
+        finalState.put("evaluations", "1234");
+
+        transcoder = new SerializingTranscoder();
+        encoded = transcoder.encode(finalState);
+
+        dataCaching = new DataCaching(1000, 60000L, "", 0);
+        dataCaching.putLocal(request.getCacheKey(), finalState, 3600);
+    }
+
+    @TearDown
+    public void tearDown() {
+        dataCaching.shutdown();
+    }
+
+    /**
+     * Canonical key from the parsed inputs.  The key is memoized per request,
+     * so each invocation builds it on a fresh request with the same inputs.
+     */
+    @Benchmark
+    public String cacheKey() {
+        return new PropagationRequest(request.getInitialEpoch(), request.getPosition(), request.getVelocity(),
+                request.getFinalEpoch(), request.getFinalEpochText()).getCacheKey();
+    }
+
+    @Benchmark
+    public CachedData encodeResult() {
+        return transcoder.encode(finalState);
+    }
+
+    @Benchmark
+    public Object decodeResult() {
+        return transcoder.decode(encoded);
+    }
+
+    @Benchmark
+    public Object localHit() {
+        return dataCaching.getLocal(request.getCacheKey());
+    }
+}
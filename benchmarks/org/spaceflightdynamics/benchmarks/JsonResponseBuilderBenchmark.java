@@ -0,0 +1,139 @@
+package org.spaceflightdynamics.benchmarks;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spaceflightdynamics.netty.JsonResponseBuilder;
+
+/**
+ * Cost of serializing a propagation response, with the same diagnostics
+ * sections RouteHandler fills in for a cached propagation (diag=full) and
+ * without any (diag=none).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonResponseBuilderBenchmark {
+
+    private Map<String, String> apriori;
+    private Map<String, String> aposteriori;
+    private Map<String, Object> diagnostics;
+
+    @Setup
+    public void setUp() {
+        apriori = new HashMap<>();
+        apriori.put("t0", "2010-05-28T12:00:00.000");
+        apriori.put("r0", "[3198022.67,2901879.73,5142928.95]");
+        apriori.put("v0", "[-6129.640631,4489.647187,1284.511245]");
+
+        aposteriori = new HashMap<>();
+        aposteriori.put("tf", "2010-05-29T12:00:00.000");
+        aposteriori.put("rf", "[-5172374.525508,-3801554.175009,-3225856.620153]");
+        aposteriori.put("vf", "[4271.815837,-3758.713113,-1936.279520]");
+
+        Map<String, String> assumptions = new HashMap<>();
+        assumptions.put("1", "The epochs, t0 and tf, are assumed to be in UTC.");
+        assumptions.put("2", "The radius and velocity vectors are in meters and meters/second, respectively.");
+        assumptions.put("3", "The frame is assumed to be the J2000 Earth-centered one.");
+
+        Map<String, Object> timing = new HashMap<>();
+        timing.put("propagationTimeMs", 42L);
+        timing.put("propagationStart", "2010-05-28T12:00:00.000 +0000");
+        timing.put("propagationEnd", "2010-05-28T12:00:00.042 +0000");
+        timing.put("totalTimeMs", 45L);
+        timing.put("runStart", "2010-05-28T12:00:00.000 +0000");
+        timing.put("runStop", "2010-05-28T12:00:00.045 +0000");
+
+        Map<String, Object> l1 = new HashMap<>();
+        l1.put("size", 10);
+        l1.put("maxEntries", 10000);
+        l1.put("hits", 100L);
+        l1.put("misses", 10L);
+        Map<String, Object> statistics = new HashMap<>();
+        statistics.put("l1", l1);
+
+        Map<String, Object> caching = new HashMap<>();
+        caching.put("enabled", true);
+        caching.put("servers", new String[0]);
+        caching.put("ttl", 60);
+        caching.put("key", "sfdaas:v4:0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef");
+        caching.put("hit", false);
+        caching.put("tier", "none");
+        caching.put("storedAt", "2010-05-28T12:00:00.045 +0000");
+        caching.put("expiresAt", "2010-05-28T12:01:00.045 +0000");
+        caching.put("statistics", statistics);
+
+        Map<String, Object> integrator = new HashMap<>();
+        integrator.put("name", "dp853");
+        integrator.put("tolerance", 1.0);
+        integrator.put("minStep", 0.001);
+        integrator.put("maxStep", 300.0);
+        integrator.put("evaluations", 1234);
+
+        Map<String, Object> session = new HashMap<>();
+        session.put("jsessionid", "0123456789ABCDEF0123456789ABCDEF");
+        session.put("created", "2010-05-28T12:00:00.000 +0000");
+        session.put("creationTime", 1275048000000L);
+        session.put("lastAccessedTime", 1275048000000L);
+        session.put("maxInactiveInterval", 1800);
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("host", "localhost:8080");
+        headers.put("user-agent", "curl/8.0.0");
+        headers.put("accept", "*/*");
+
+        Map<String, Object> request = new HashMap<>();
+        request.put("method", "GET");
+        request.put("uri", "/SFDaaS/orekit/propagate?t0=2010-05-28T12:00:00.000&tf=2010-05-29T12:00:00.000");
+        request.put("protocol", "HTTP/1.1");
+        request.put("remoteAddress", "/127.0.0.1:54321");
+        request.put("headers", headers);
+
+        Map<String, String> system = new HashMap<>();
+        system.put("username", "sfdaas");
+        system.put("homeDirectory", "/home/sfdaas");
+        system.put("userCWD", "/opt/sfdaas");
+
+        Map<String, String> orekit = new HashMap<>();
+        orekit.put("version", "13.1.2");
+        orekit.put("dataPath", "/opt/sfdaas/data");
+
+        diagnostics = new HashMap<>();
+        diagnostics.put("assumptions", assumptions);
+        diagnostics.put("timing", timing);
+        diagnostics.put("propagation", timing);
+        diagnostics.put("caching", caching);
+        diagnostics.put("fidelity", "high");
+        diagnostics.put("integrator", integrator);
+        diagnostics.put("forces", Arrays.asList("moon", "sun"));
+        diagnostics.put("session", session);
+        diagnostics.put("request", request);
+        diagnostics.put("system", system);
+        diagnostics.put("orekit", orekit);
+    }
+
+    @Benchmark
+    public String buildPropagationResponse() {
+        return JsonResponseBuilder.buildPropagationResponse(apriori, aposteriori, diagnostics);
+    }
+
+    @Benchmark
+    public String buildCompactPropagationResponse() {
+        return JsonResponseBuilder.buildCompactPropagationResponse(apriori, aposteriori, null, null);
+    }
+}
@@ -0,0 +1,64 @@
+package org.spaceflightdynamics.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hipparchus.geometry.euclidean.threed.Vector3D;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.orekit.time.AbsoluteDate;
+import org.spaceflightdynamics.propagation.OrekitContext;
+import org.spaceflightdynamics.propagation.PropagationRequest;
+
+/**
+ * Cost of turning the URL parameters of a propagation into typed inputs:
+ * the vector and epoch parsing on their own, and the whole request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParsingBenchmark {
+
+    private static final String R0 = "[3198022.67,2901879.73,5142928.95]";
+    private static final String T0 = "2010-05-28T12:00:00.000";
+
+    private Map<String, String> parms;
+
+    @Setup
+    public void setUp() {
+        OrekitContext.getInstance();
+
+        parms = new HashMap<>();
+        parms.put("t0", T0);
+        parms.put("tf", "2010-05-29T12:00:00.000");
+        parms.put("r0", R0);
+        parms.put("v0", "[-6129.640631,4489.647187,1284.511245]");
+    }
+
+    @Benchmark
+    public Vector3D parseVector() {
+        return PropagationRequest.parseVector("r0", R0);
+    }
+
+    @Benchmark
+    public AbsoluteDate parseEpoch() {
+        return PropagationRequest.parseEpoch("t0", T0);
+    }
+
+    @Benchmark
+    public PropagationRequest parseRequest() {
+        return PropagationRequest.parse(parms);
+    }
+}
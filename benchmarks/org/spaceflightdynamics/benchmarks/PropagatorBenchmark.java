@@ -0,0 +1,77 @@
+package org.spaceflightdynamics.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.orekit.time.AbsoluteDate;
+import org.spaceflightdynamics.propagation.OrekitContext;
+import org.spaceflightdynamics.propagation.PropagationRequest;
+import org.spaceflightdynamics.propagation.Propagator;
+
+/**
+ * Cost of setting up and running a propagation of the README example orbit
+ * over several spans, per integrator.  step is the fixed step of rk4 and the
+ * maximum step of the adaptive integrators.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PropagatorBenchmark {
+
+    @Param({"3600", "86400", "604800"})
+    private double span;
+
+    @Param({"rk4", "dp853"})
+    private String integrator;
+
+    @Param({"30", "120"})
+    private String step;
+
+    private PropagationRequest request;
+
+    @Setup
+    public void setUp() {
+        OrekitContext context = OrekitContext.getInstance();
+        AbsoluteDate t0 = new AbsoluteDate("2010-05-28T12:00:00.000", context.getUTC());
+
+        Map<String, String> parms = new HashMap<>();
+        parms.put("t0", "2010-05-28T12:00:00.000");
+        parms.put("tf", t0.shiftedBy(span).toString(context.getUTC()));
+        parms.put("r0", "[3198022.67,2901879.73,5142928.95]");
+        parms.put("v0", "[-6129.640631,4489.647187,1284.511245]");
+        parms.put("integrator", integrator);
+        parms.put(PropagationRequest.RK4.equals(integrator) ? "stepSize" : "maxStep", step);
+        request = PropagationRequest.parse(parms);
+    }
+
+    /**
+     * Building the integrator, orbit and numerical propagator only.
+     */
+    @Benchmark
+    public Propagator initialize() {
+        return new Propagator(request);
+    }
+
+    /**
+     * Setup plus the integration to tf.
+     */
+    @Benchmark
+    public HashMap<String, String> propagate() {
+        return new Propagator(request).propagate();
+    }
+}
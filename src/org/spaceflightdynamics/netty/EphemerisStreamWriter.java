@@ -0,0 +1,253 @@
+package org.spaceflightdynamics.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+import org.orekit.time.AbsoluteDate;
+import org.orekit.utils.TimeStampedPVCoordinates;
+import org.spaceflightdynamics.propagation.Cancellation;
+import org.spaceflightdynamics.propagation.Propagator;
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Streams an ephemeris to the client as HTTP chunked transfer while the
+ * integrator produces it. Samples are encoded straight into pooled buffers and
+ * flushed in chunks of about CHUNK_SIZE bytes, so time-to-first-byte and heap
+ * use do not grow with the propagation span.
+ *
+ * Called from a compute thread. Before each chunk is written the writer waits
+ * for the channel to become writable, so a slow client slows the integration
+ * down instead of piling buffers up in memory. If the client goes away the
+ * next sample throws, which aborts the integration; so does a deadline that
+ * passes while the writer waits on a slow client.
+ *
+ * Samples are JSON objects after start, or PackedStateEncoder records after
+ * startBinary.
+ */
+public class EphemerisStreamWriter implements Consumer<TimeStampedPVCoordinates> {
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final ChannelHandlerContext ctx;
+    private final boolean keepAlive;
+    private final HttpHeaders responseHeaders;
+    private final Cancellation cancellation;
+    private final Object writabilityLock = new Object();
+
+    private ByteBuf chunk;
+    private boolean started;
+    private boolean firstSample = true;
+    private int samples;
+    // Epoch binary record times are measured from; null for JSON
+    private AbsoluteDate binaryEpoch;
+
+    /**
+     * @param responseHeaders - further headers to send, such as Set-Cookie, or null
+     * @param cancellation    - the request's cancellation token
+     */
+    public EphemerisStreamWriter(ChannelHandlerContext ctx, boolean keepAlive, HttpHeaders responseHeaders,
+                                 Cancellation cancellation) {
+        this.ctx = ctx;
+        this.keepAlive = keepAlive;
+        this.responseHeaders = responseHeaders;
+        this.cancellation = cancellation;
+    }
+
+    /**
+     * Sends the response headers and the opening part of the JSON document.
+     */
+    public void start(String head) {
+        sendHeaders("application/json; charset=UTF-8");
+        chunk.writeCharSequence(head, CharsetUtil.UTF_8);
+        flushChunk();
+    }
+
+    /**
+     * Sends the response headers for a binary ephemeris. Nothing else is
+     * written until the first chunk of records is full.
+     *
+     * @param t0 - epoch the record times are measured from
+     */
+    public void startBinary(AbsoluteDate t0) {
+        sendHeaders(PackedStateEncoder.CONTENT_TYPE);
+        binaryEpoch = t0;
+        ctx.flush();
+    }
+
+    /**
+     * Appends one ephemeris sample, writing a chunk when enough has accumulated.
+     */
+    @Override
+    public void accept(TimeStampedPVCoordinates pv) {
+        if (binaryEpoch != null) {
+            PackedStateEncoder.writeSample(chunk, binaryEpoch, pv);
+            samples++;
+            if (chunk.readableBytes() >= CHUNK_SIZE) {
+                flushChunk();
+            }
+            return;
+        }
+        Map<String, String> sample = Propagator.formatSample(pv);
+        if (!firstSample) {
+            chunk.writeByte(',');
+        }
+        firstSample = false;
+        ByteBufUtil.writeAscii(chunk, "{\"t\":\"");
+        ByteBufUtil.writeAscii(chunk, sample.get("t"));
+        ByteBufUtil.writeAscii(chunk, "\",\"r\":\"");
+        ByteBufUtil.writeAscii(chunk, sample.get("r"));
+        ByteBufUtil.writeAscii(chunk, "\",\"v\":\"");
+        ByteBufUtil.writeAscii(chunk, sample.get("v"));
+        ByteBufUtil.writeAscii(chunk, "\"}");
+        samples++;
+
+        if (chunk.readableBytes() >= CHUNK_SIZE) {
+            flushChunk();
+        }
+    }
+
+    /**
+     * Writes the closing part of the JSON document and ends the response.
+     */
+    public void finish(String tail) {
+        chunk.writeCharSequence(tail, CharsetUtil.UTF_8);
+        ctx.write(new DefaultHttpContent(chunk));
+        chunk = null;
+        end();
+    }
+
+    /**
+     * Writes the final state record of a binary ephemeris and ends the response.
+     *
+     * @param t - seconds from t0 to tf
+     */
+    public void finishBinary(double t, Map<String, String> finalState) {
+        PackedStateEncoder.writeFinalState(chunk, t, finalState);
+        ctx.write(new DefaultHttpContent(chunk));
+        chunk = null;
+        end();
+    }
+
+    /**
+     * Ends a response that failed after streaming started. The status line has
+     * already been sent, so the error is reported in the document itself and
+     * the connection is closed. A binary stream has no room for the error and
+     * is closed without its last chunk, which the client sees as truncated.
+     */
+    public void abort(String tail) {
+        if (binaryEpoch != null) {
+            if (chunk != null) {
+                chunk.release();
+                chunk = null;
+            }
+            ctx.close();
+            return;
+        }
+        if (chunk == null) {
+            chunk = ctx.alloc().buffer(tail.length());
+        }
+        if (ctx.channel().isActive()) {
+            chunk.writeCharSequence(tail, CharsetUtil.UTF_8);
+            ctx.write(new DefaultHttpContent(chunk));
+            chunk = null;
+            ctx.writeAndFlush(new DefaultLastHttpContent()).addListener(ChannelFutureListener.CLOSE);
+        } else {
+            chunk.release();
+            chunk = null;
+        }
+    }
+
+    /**
+     * Returns true once the response headers have been sent.
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Returns the number of samples written so far.
+     */
+    public int getSampleCount() {
+        return samples;
+    }
+
+    /**
+     * Called by the channel handler when writability changes or the channel
+     * closes, to wake a compute thread waiting in awaitWritable.
+     */
+    public void writabilityChanged() {
+        synchronized (writabilityLock) {
+            writabilityLock.notifyAll();
+        }
+    }
+
+    private void sendHeaders(String contentType) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+        HttpUtil.setTransferEncodingChunked(response, true);
+        if (responseHeaders != null) {
+            response.headers().add(responseHeaders);
+        }
+        if (keepAlive) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        }
+        ctx.write(response);
+        started = true;
+
+        chunk = ctx.alloc().buffer(CHUNK_SIZE + 256);
+    }
+
+    private void end() {
+        if (keepAlive) {
+            ctx.writeAndFlush(new DefaultLastHttpContent());
+        } else {
+            ctx.writeAndFlush(new DefaultLastHttpContent()).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    private void flushChunk() {
+        awaitWritable();
+        ctx.writeAndFlush(new DefaultHttpContent(chunk));
+        chunk = ctx.alloc().buffer(CHUNK_SIZE + 256);
+    }
+
+    /*
+     * Blocks the compute thread while the outbound buffer is above the high
+     * water mark. Polls as well as waiting for a notification so a missed
+     * wake-up can only delay, never stall, the stream. Throws
+     * PropagationCancelledException once the request is cancelled or the
+     * client has gone.
+     */
+    private void awaitWritable() {
+        Channel channel = ctx.channel();
+        synchronized (writabilityLock) {
+            while (channel.isActive() && !channel.isWritable() && !cancellation.isCancelled()) {
+                try {
+                    writabilityLock.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        if (!channel.isActive()) {
+            // Cancelled like any other disconnection; abort releases the chunk
+            cancellation.disconnect();
+        }
+        cancellation.check();
+    }
+}
@@ -1,24 +1,34 @@
 package org.spaceflightdynamics.netty;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.codec.http.cookie.Cookie;
 import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
 import io.netty.handler.codec.http.cookie.ServerCookieEncoder;
-import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spaceflightdynamics.propagation.Cancellation;
+import org.spaceflightdynamics.propagation.PropagationCancelledException;
+import org.spaceflightdynamics.propagation.PropagationCost;
+import org.spaceflightdynamics.utils.DataCaching;
 
-import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.file.Files;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Netty channel handler for HTTP requests.
@@ -26,16 +36,47 @@ import java.util.Set;
  */
 public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
 
+    private static final Logger logger = LoggerFactory.getLogger(HttpRequestHandler.class);
+
     private final SessionManager sessionManager;
     private final String contextPath;
+    private final PropagationExecutor propagationExecutor;
+    private final DataCaching dataCaching;
+    private final EventLoopGroup workerGroup;
+    private final StaticFileCache staticFiles;
+
+    // Ephemeris currently being streamed on this channel, if any
+    private volatile EphemerisStreamWriter activeStream;
+
+    /*
+     * HTTP/1.1 pipelining: responses must go out in request order, so while a
+     * request is on the compute pool the channel stops reading, and requests
+     * already decoded wait here. Only touched on the event loop.
+     */
+    private final ArrayDeque<FullHttpRequest> pipelined = new ArrayDeque<>();
+    private boolean dispatched;
 
-    public HttpRequestHandler(SessionManager sessionManager, String contextPath) {
+    public HttpRequestHandler(SessionManager sessionManager, String contextPath,
+                              PropagationExecutor propagationExecutor, DataCaching dataCaching,
+                              EventLoopGroup workerGroup, StaticFileCache staticFiles) {
         this.sessionManager = sessionManager;
         this.contextPath = contextPath;
+        this.propagationExecutor = propagationExecutor;
+        this.dataCaching = dataCaching;
+        this.workerGroup = workerGroup;
+        this.staticFiles = staticFiles;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+        if (dispatched) {
+            pipelined.add(request.retain());
+            return;
+        }
+        handle(ctx, request);
+    }
+
+    private void handle(ChannelHandlerContext ctx, FullHttpRequest request) {
         try {
             // Get remote address
             String remoteAddress = ((InetSocketAddress) ctx.channel().remoteAddress()).getAddress().getHostAddress();
@@ -51,15 +92,19 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
             }
 
             // Check if this is a static file request
-            if (path.equals("/") || path.equals("") || path.equals("/index.html")) {
-                serveStaticFile(ctx, request, "WebContent/index.html", "text/html");
+            if (path.equals("/") || path.equals("")) {
+                serveStaticFile(ctx, request, "/index.html");
                 return;
             } else if (path.startsWith("/static/") || path.endsWith(".html") || path.endsWith(".css") ||
                        path.endsWith(".js") || path.endsWith(".ico")) {
-                // Serve other static files from WebContent
-                String filePath = "WebContent" + path;
-                String contentType = getContentType(path);
-                serveStaticFile(ctx, request, filePath, contentType);
+                serveStaticFile(ctx, request, path);
+                return;
+            }
+
+            // Metrics scrapes are not part of any session
+            if (path.equals("/metrics")) {
+                String metrics = Metrics.scrape(sessionManager, propagationExecutor, dataCaching, workerGroup);
+                sendResponse(ctx, request, metrics, Metrics.CONTENT_TYPE, HttpResponseStatus.OK);
                 return;
             }
 
@@ -75,27 +120,86 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
                 }
             }
 
-            // Handle session cookie
-            HttpSession session = getOrCreateSession(request);
+            // Headers the route adds to its response (Set-Cookie, X-Cache)
+            HttpHeaders responseHeaders = new DefaultHttpHeaders();
 
-            // Update last accessed time
-            session.updateLastAccessedTime();
+            // Sessions are looked up only when a cookie is sent, and created only by propagations with sf=1
+            boolean propagate = path.equals("/orekit/propagate") || path.equals("/orekit/propagate/");
+            boolean batch = path.equals("/orekit/propagate/batch") || path.equals("/orekit/propagate/batch/");
+            HttpSession session = findSession(request);
+            if (session == null && propagate && "1".equals(params.get("sf"))) {
+                session = sessionManager.createSession();
+                responseHeaders.set(HttpHeaderNames.SET_COOKIE, createSessionCookie(session.getId()));
+            }
+
+            // Propagations are cancelled at their deadline, which counts from now so queueing uses it up too
+            Cancellation cancellation = null;
+            if (propagate || batch) {
+                try {
+                    cancellation = RouteHandler.parseDeadline(params);
+                } catch (IllegalArgumentException e) {
+                    sendResponse(ctx, request, JsonResponseBuilder.buildErrorResponse(e.getMessage(), 400),
+                            "application/json; charset=UTF-8", HttpResponseStatus.BAD_REQUEST, responseHeaders);
+                    return;
+                }
+            }
+            Cancellation requestCancellation = cancellation;
 
             // Route based on path
             if (path.equals("/orekit/propagate/usage") || path.equals("/orekit/propagate/usage/")) {
                 responseJson = RouteHandler.handleUsage(request, session, remoteAddress);
-            } else if (path.equals("/orekit/propagate") || path.equals("/orekit/propagate/")) {
-                responseJson = RouteHandler.handlePropagate(request, session, params, remoteAddress);
+            } else if (propagate) {
+                // Costed before queueing from the raw parameters: too large is refused, the
+                // rest run shortest first. The full parse, epochs lists included, is left to
+                // the compute thread, which also reports invalid inputs.
+                double cost = PropagationCost.estimate(params);
+                if (!PropagationCost.isAdmissible(cost)) {
+                    sendResponse(ctx, request, RouteHandler.buildCostLimitError(cost),
+                            "application/json; charset=UTF-8", HttpResponseStatus.UNPROCESSABLE_ENTITY,
+                            responseHeaders);
+                    return;
+                }
+
+                // Propagation runs on the compute pool; the response is written when it completes.
+                // Chunked streaming needs HTTP/1.1.
+                EphemerisStreamWriter stream = null;
+                if (HttpVersion.HTTP_1_1.equals(request.protocolVersion())) {
+                    stream = new EphemerisStreamWriter(ctx, HttpUtil.isKeepAlive(request), responseHeaders,
+                            cancellation);
+                }
+                activeStream = stream;
+                EphemerisStreamWriter requestStream = stream;
+                HttpSession requestSession = session;
+                boolean binary = PackedStateEncoder.accepts(request);
+                dispatchToComputePool(ctx, request, responseHeaders, cost, cancellation,
+                        () -> RouteHandler.handlePropagate(
+                        request, requestSession, params, remoteAddress, dataCaching, requestStream, binary,
+                        ctx.alloc(), responseHeaders, requestCancellation));
+                return;
+            } else if (batch) {
+                if (!HttpMethod.POST.equals(request.method())) {
+                    responseJson = JsonResponseBuilder.buildErrorResponse(
+                            "Method not allowed: use POST for " + path,
+                            405);
+                    status = HttpResponseStatus.METHOD_NOT_ALLOWED;
+                } else {
+                    boolean binary = PackedStateEncoder.accepts(request);
+                    dispatchToComputePool(ctx, request, responseHeaders, PropagationExecutor.BATCH_COST,
+                            cancellation, () -> RouteHandler.handleBatch(
+                            request, params, dataCaching, propagationExecutor, binary, ctx.alloc(),
+                            requestCancellation));
+                    return;
+                }
             } else {
                 responseJson = RouteHandler.handle404(path);
                 status = HttpResponseStatus.NOT_FOUND;
             }
 
             // Create JSON response
-            sendJsonResponse(ctx, request, responseJson, status);
+            sendResponse(ctx, request, responseJson, "application/json; charset=UTF-8", status, responseHeaders);
 
         } catch (Exception e) {
-            e.printStackTrace();
+            logger.error("Error handling {} {}", request.method(), request.uri(), e);
             String errorJson = JsonResponseBuilder.buildErrorResponse(
                     "Internal server error: " + e.getMessage(),
                     500);
@@ -103,17 +207,271 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
         }
     }
 
+    /**
+     * Hands a propagation route to the compute pool so the event loop stays free
+     * for other connections. Replies 503 with Retry-After if the pool is saturated.
+     * The route returns a JSON document (200), a JsonResponse with its own
+     * status, a ByteBuf of packed states, null if it has already written the
+     * response, or a CompletableFuture of one of those if it waits on another
+     * request's propagation.
+     *
+     * Closing the connection cancels the request, and a request whose
+     * deadline passed or whose client left while it was queued never runs.
+     * Nothing else is read from the connection until the response is written.
+     *
+     * @param responseHeaders - headers the route adds to its response
+     * @param cost            - estimated cost, which orders the task in the queue
+     * @param cancellation    - the request's deadline and disconnection token
+     */
+    private void dispatchToComputePool(ChannelHandlerContext ctx, FullHttpRequest request,
+                                       HttpHeaders responseHeaders, double cost, Cancellation cancellation,
+                                       Callable<Object> route) {
+        // SimpleChannelInboundHandler releases the request on return; keep it for the compute task
+        request.retain();
+
+        dispatched = true;
+        ctx.channel().config().setAutoRead(false);
+
+        // Removed once the request is done, or keep-alive connections would collect them
+        ChannelFutureListener disconnect = future -> cancellation.disconnect();
+        ctx.channel().closeFuture().addListener(disconnect);
+
+        submitRoute(ctx, request, responseHeaders, cost, cancellation, route, disconnect);
+    }
+
+    /*
+     * Queues the route on the compute pool, or answers 503 and finishes the
+     * request if the pool is saturated.
+     */
+    private void submitRoute(ChannelHandlerContext ctx, FullHttpRequest request,
+                             HttpHeaders responseHeaders, double cost, Cancellation cancellation,
+                             Callable<Object> route, ChannelFutureListener disconnect) {
+        boolean accepted = propagationExecutor.submit(() -> {
+            Object response;
+            try {
+                if (cancellation.isCancelled()) {
+                    Metrics.recordCancellation(cancellation.getReason());
+                    cancellation.check();
+                }
+                response = route.call();
+            } catch (Throwable e) {
+                respond(ctx, request, responseHeaders, null, e, disconnect);
+                return;
+            }
+            if (response instanceof CompletableFuture) {
+                awaitRoute(ctx, request, responseHeaders, cost, cancellation, route, disconnect,
+                        (CompletableFuture<?>) response);
+            } else {
+                respond(ctx, request, responseHeaders, response, null, disconnect);
+            }
+        }, cost);
+
+        if (!accepted) {
+            try {
+                sendServiceUnavailable(ctx, request);
+            } finally {
+                ctx.channel().closeFuture().removeListener(disconnect);
+                request.release();
+                dispatchDone(ctx);
+            }
+        }
+    }
+
+    /*
+     * Answers a route that waits on another request's propagation from the
+     * thread that completes it, without holding a compute thread meanwhile.
+     * The request's own deadline and disconnection end the wait early. If the
+     * propagation was cancelled with the request that started it, the route
+     * is queued again to run it, or join whoever does.
+     */
+    private void awaitRoute(ChannelHandlerContext ctx, FullHttpRequest request,
+                            HttpHeaders responseHeaders, double cost, Cancellation cancellation,
+                            Callable<Object> route, ChannelFutureListener disconnect,
+                            CompletableFuture<?> pending) {
+        // Completed by the route, or earlier by the deadline or the disconnection
+        CompletableFuture<Object> outcome = new CompletableFuture<>();
+        pending.whenComplete((response, failure) -> {
+            if (failure == null ? !outcome.complete(response) : !outcome.completeExceptionally(failure)) {
+                // Too late: nobody sends the packed states
+                ReferenceCountUtil.release(response);
+            }
+        });
+        long remaining = cancellation.getRemainingNanos();
+        ScheduledFuture<?> deadline = remaining == Long.MAX_VALUE || outcome.isDone() ? null : ctx.executor().schedule(
+                () -> outcome.completeExceptionally(new PropagationCancelledException(
+                        Cancellation.Reason.DEADLINE, cancellation.getTimeoutSeconds())),
+                remaining, TimeUnit.NANOSECONDS);
+        ChannelFutureListener gone = future -> outcome.completeExceptionally(
+                new PropagationCancelledException(Cancellation.Reason.DISCONNECTED, 0));
+        ctx.channel().closeFuture().addListener(gone);
+
+        outcome.whenComplete((response, failure) -> {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            ctx.channel().closeFuture().removeListener(gone);
+            Throwable cause = RouteHandler.unwrap(failure);
+            if (cause instanceof PropagationCancelledException && !cancellation.isCancelled()) {
+                submitRoute(ctx, request, responseHeaders, cost, cancellation, route, disconnect);
+                return;
+            }
+            respond(ctx, request, responseHeaders, response, cause, disconnect);
+        });
+    }
+
+    /*
+     * Sends what the route returned, or answers what it failed with, then
+     * moves on to the next request on the connection.
+     */
+    private void respond(ChannelHandlerContext ctx, FullHttpRequest request, HttpHeaders responseHeaders,
+                         Object response, Throwable failure, ChannelFutureListener disconnect) {
+        try {
+            if (failure instanceof PropagationCancelledException) {
+                sendCancelled(ctx, request, responseHeaders, (PropagationCancelledException) failure);
+            } else if (failure != null) {
+                logger.error("Error handling {} {}", request.method(), request.uri(), failure);
+                sendInternalError(ctx, request, responseHeaders, failure);
+            } else if (response instanceof ByteBuf) {
+                sendResponse(ctx, request, (ByteBuf) response, PackedStateEncoder.CONTENT_TYPE,
+                        HttpResponseStatus.OK, responseHeaders);
+            } else if (response instanceof JsonResponse) {
+                JsonResponse json = (JsonResponse) response;
+                sendResponse(ctx, request, encode(ctx, json.getJson()),
+                        "application/json; charset=UTF-8", json.getStatus(), responseHeaders);
+            } else if (response != null) {
+                // A null response means the route has already written it (streamed)
+                sendResponse(ctx, request, encode(ctx, (String) response),
+                        "application/json; charset=UTF-8", HttpResponseStatus.OK, responseHeaders);
+            }
+        } catch (Throwable e) {
+            logger.error("Error handling {} {}", request.method(), request.uri(), e);
+            sendInternalError(ctx, request, responseHeaders, e);
+        } finally {
+            ctx.channel().closeFuture().removeListener(disconnect);
+            request.release();
+            dispatchDone(ctx);
+        }
+    }
+
+    /*
+     * Called once the response has been written, or abandoned, from the
+     * thread that wrote it. Its writes are already queued on the event loop ahead of
+     * this task, so the next pipelined response can only follow them.
+     */
+    private void dispatchDone(ChannelHandlerContext ctx) {
+        ctx.executor().execute(() -> {
+            activeStream = null;
+            dispatched = false;
+            FullHttpRequest next;
+            while (!dispatched && (next = pipelined.poll()) != null) {
+                try {
+                    handle(ctx, next);
+                } finally {
+                    next.release();
+                }
+            }
+            if (!dispatched) {
+                ctx.channel().config().setAutoRead(true);
+            }
+        });
+    }
+
+    /**
+     * Answers a request whose route failed with a 500, keeping the headers
+     * the route set (Set-Cookie). A streamed response whose headers are
+     * already out can only be cut short.
+     */
+    private void sendInternalError(ChannelHandlerContext ctx, FullHttpRequest request,
+                                   HttpHeaders responseHeaders, Throwable e) {
+        EphemerisStreamWriter stream = activeStream;
+        if (stream != null && stream.isStarted()) {
+            ctx.close();
+            return;
+        }
+        String errorJson = JsonResponseBuilder.buildErrorResponse(
+                "Internal server error: " + e.getMessage(),
+                500);
+        sendResponse(ctx, request, errorJson, "application/json; charset=UTF-8",
+                HttpResponseStatus.INTERNAL_SERVER_ERROR, responseHeaders);
+    }
+
+    /**
+     * Answers a cancelled request: 504 if its deadline passed, nothing if its
+     * client has gone. A streamed response was already ended by the route.
+     */
+    private void sendCancelled(ChannelHandlerContext ctx, FullHttpRequest request,
+                               HttpHeaders responseHeaders, PropagationCancelledException e) {
+        logger.debug("{} {} cancelled: {}", request.method(), request.uri(), e.getMessage());
+        if (e.isDeadline() && ctx.channel().isActive()) {
+            sendResponse(ctx, request, RouteHandler.buildDeadlineError(e), "application/json; charset=UTF-8",
+                    HttpResponseStatus.GATEWAY_TIMEOUT, responseHeaders);
+        }
+    }
+
+    private void sendServiceUnavailable(ChannelHandlerContext ctx, FullHttpRequest request) {
+        String errorJson = JsonResponseBuilder.buildErrorResponse(
+                "Server busy: propagation queue is full, retry later",
+                503);
+        ByteBuf content = encode(ctx, errorJson);
+        FullHttpResponse response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                HttpResponseStatus.SERVICE_UNAVAILABLE,
+                content);
+
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+        response.headers().set(HttpHeaderNames.RETRY_AFTER, propagationExecutor.getRetryAfterSeconds());
+
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        if (keepAlive) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+            ctx.writeAndFlush(response);
+        } else {
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
     private void sendJsonResponse(ChannelHandlerContext ctx, FullHttpRequest request,
                                    String responseJson, HttpResponseStatus status) {
-        ByteBuf content = Unpooled.copiedBuffer(responseJson, CharsetUtil.UTF_8);
+        sendResponse(ctx, request, responseJson, "application/json; charset=UTF-8", status);
+    }
+
+    private void sendResponse(ChannelHandlerContext ctx, FullHttpRequest request,
+                              String body, String contentType, HttpResponseStatus status) {
+        sendResponse(ctx, request, body, contentType, status, null);
+    }
+
+    private void sendResponse(ChannelHandlerContext ctx, FullHttpRequest request,
+                              String body, String contentType, HttpResponseStatus status,
+                              HttpHeaders responseHeaders) {
+        sendResponse(ctx, request, encode(ctx, body), contentType, status, responseHeaders);
+    }
+
+    /**
+     * Encodes a response body as UTF-8 straight into a pooled buffer from the
+     * channel's allocator, sized exactly, without an intermediate byte array.
+     * The buffer is released when the response has been written.
+     */
+    private static ByteBuf encode(ChannelHandlerContext ctx, String body) {
+        ByteBuf content = ctx.alloc().buffer(ByteBufUtil.utf8Bytes(body));
+        ByteBufUtil.writeUtf8(content, body);
+        return content;
+    }
+
+    private void sendResponse(ChannelHandlerContext ctx, FullHttpRequest request,
+                              ByteBuf content, String contentType, HttpResponseStatus status,
+                              HttpHeaders responseHeaders) {
         FullHttpResponse response = new DefaultFullHttpResponse(
                 HttpVersion.HTTP_1_1,
                 status,
                 content);
 
         // Set response headers
-        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
         response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+        if (responseHeaders != null) {
+            response.headers().add(responseHeaders);
+        }
 
         // Handle keep-alive
         boolean keepAlive = HttpUtil.isKeepAlive(request);
@@ -129,67 +487,56 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
         }
     }
 
-    private void serveStaticFile(ChannelHandlerContext ctx, FullHttpRequest request,
-                                  String filePath, String contentType) {
-        File file = new File(filePath);
-
-        if (!file.exists() || !file.isFile()) {
+    /**
+     * Serves a file from the static cache, or 304 if the client's copy is
+     * still current. Paths not in the cache are 404s; nothing is read from disk.
+     */
+    private void serveStaticFile(ChannelHandlerContext ctx, FullHttpRequest request, String path) {
+        StaticFileCache.Entry file = staticFiles.get(path);
+        if (file == null) {
             String errorJson = JsonResponseBuilder.buildErrorResponse(
-                    "File not found: " + filePath,
+                    "File not found: " + path,
                     404);
             sendJsonResponse(ctx, request, errorJson, HttpResponseStatus.NOT_FOUND);
             return;
         }
 
-        try {
-            byte[] fileContent = Files.readAllBytes(file.toPath());
-            ByteBuf content = Unpooled.wrappedBuffer(fileContent);
-
-            FullHttpResponse response = new DefaultFullHttpResponse(
-                    HttpVersion.HTTP_1_1,
-                    HttpResponseStatus.OK,
-                    content);
-
-            response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+        boolean gzip = file.useGzip(request);
+        FullHttpResponse response;
+        if (file.isNotModified(request)) {
+            response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+        } else {
+            ByteBuf content = file.getContent(gzip);
+            response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, file.getContentType());
             response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
-
-            boolean keepAlive = HttpUtil.isKeepAlive(request);
-            if (keepAlive) {
-                response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-            }
-
-            if (keepAlive) {
-                ctx.writeAndFlush(response);
-            } else {
-                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+            if (gzip) {
+                response.headers().set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.GZIP);
             }
+        }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-            String errorJson = JsonResponseBuilder.buildErrorResponse(
-                    "Error reading file: " + e.getMessage(),
-                    500);
-            sendJsonResponse(ctx, request, errorJson, HttpResponseStatus.INTERNAL_SERVER_ERROR);
+        // Validators and caching headers go on the 304 too (RFC 7232)
+        response.headers().set(HttpHeaderNames.ETAG, file.getEtag(gzip));
+        response.headers().set(HttpHeaderNames.LAST_MODIFIED, file.getLastModified());
+        response.headers().set(HttpHeaderNames.CACHE_CONTROL, staticFiles.getCacheControl());
+        if (file.hasGzip()) {
+            response.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
         }
-    }
 
-    private String getContentType(String path) {
-        if (path.endsWith(".html")) return "text/html; charset=UTF-8";
-        if (path.endsWith(".css")) return "text/css; charset=UTF-8";
-        if (path.endsWith(".js")) return "application/javascript; charset=UTF-8";
-        if (path.endsWith(".json")) return "application/json; charset=UTF-8";
-        if (path.endsWith(".png")) return "image/png";
-        if (path.endsWith(".jpg") || path.endsWith(".jpeg")) return "image/jpeg";
-        if (path.endsWith(".gif")) return "image/gif";
-        if (path.endsWith(".svg")) return "image/svg+xml";
-        if (path.endsWith(".ico")) return "image/x-icon";
-        return "text/plain; charset=UTF-8";
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        if (keepAlive) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+            ctx.writeAndFlush(response);
+        } else {
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
     }
 
     /**
-     * Retrieves existing session from cookie or creates a new one.
+     * Retrieves the live session named by the JSESSIONID cookie, or null.
+     * Never creates one: stateless API calls must not fill the session store.
      */
-    private HttpSession getOrCreateSession(FullHttpRequest request) {
+    private HttpSession findSession(FullHttpRequest request) {
         String sessionId = null;
 
         // Try to extract JSESSIONID from cookies
@@ -204,14 +551,16 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
             }
         }
 
-        // Get existing session or create new one
-        HttpSession session = sessionManager.getSession(sessionId, true);
-
+        HttpSession session = sessionManager.getSession(sessionId);
+        if (session != null) {
+            session.updateLastAccessedTime();
+        }
         return session;
     }
 
     /**
-     * Creates a Set-Cookie header for JSESSIONID.
+     * Creates a Set-Cookie header for JSESSIONID, sent with the response to
+     * the request that created the session.
      */
     private String createSessionCookie(String sessionId) {
         io.netty.handler.codec.http.cookie.DefaultCookie cookie =
@@ -221,15 +570,42 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
         return ServerCookieEncoder.STRICT.encode(cookie);
     }
 
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        EphemerisStreamWriter stream = activeStream;
+        if (stream != null) {
+            stream.writabilityChanged();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        EphemerisStreamWriter stream = activeStream;
+        if (stream != null) {
+            stream.writabilityChanged();
+        }
+        FullHttpRequest next;
+        while ((next = pipelined.poll()) != null) {
+            next.release();
+        }
+        super.channelInactive(ctx);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-        cause.printStackTrace();
+        // Clients dropping their connection are routine, not errors
+        if (cause instanceof IOException) {
+            logger.debug("Connection error from {}: {}", ctx.channel().remoteAddress(), cause.toString());
+        } else {
+            logger.warn("Unhandled error on {}", ctx.channel(), cause);
+        }
 
         String errorJson = JsonResponseBuilder.buildErrorResponse(
                 "Internal server error: " + cause.getMessage(),
                 500);
 
-        ByteBuf content = Unpooled.copiedBuffer(errorJson, CharsetUtil.UTF_8);
+        ByteBuf content = encode(ctx, errorJson);
         FullHttpResponse response = new DefaultFullHttpResponse(
                 HttpVersion.HTTP_1_1,
                 HttpResponseStatus.INTERNAL_SERVER_ERROR,
@@ -1,5 +1,7 @@
 package org.spaceflightdynamics.netty;
 
+import io.netty.util.Timeout;
+
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -10,9 +12,10 @@ import java.util.concurrent.ConcurrentHashMap;
 public class HttpSession {
     private final String sessionId;
     private final long creationTime;
-    private long lastAccessedTime;
-    private int maxInactiveInterval; // in seconds
+    private volatile long lastAccessedTime;
+    private volatile int maxInactiveInterval; // in seconds
     private final Map<String, Object> attributes;
+    private volatile Timeout expiry; // pending SessionManager expiry check
 
     public HttpSession(String sessionId) {
         this.sessionId = sessionId;
@@ -101,6 +104,14 @@ public class HttpSession {
         return inactiveTime > (maxInactiveInterval * 1000L);
     }
 
+    Timeout getExpiry() {
+        return expiry;
+    }
+
+    void setExpiry(Timeout expiry) {
+        this.expiry = expiry;
+    }
+
     @Override
     public String toString() {
         return String.format("HttpSession[id=%s, created=%d, lastAccessed=%d, maxInactive=%d]",
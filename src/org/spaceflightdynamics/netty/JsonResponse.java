@@ -0,0 +1,35 @@
+package org.spaceflightdynamics.netty;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * A JSON document returned by a route together with the HTTP status it is
+ * sent with. Routes return a plain String for a 200, and this for errors,
+ * so the status line agrees with the "code" of the error document.
+ */
+public final class JsonResponse {
+
+    private final HttpResponseStatus status;
+    private final String json;
+
+    public JsonResponse(HttpResponseStatus status, String json) {
+        this.status = status;
+        this.json = json;
+    }
+
+    /**
+     * Builds an error document sent with its code as the HTTP status.
+     */
+    public static JsonResponse error(String message, int code) {
+        return new JsonResponse(HttpResponseStatus.valueOf(code),
+                JsonResponseBuilder.buildErrorResponse(message, code));
+    }
+
+    public HttpResponseStatus getStatus() {
+        return status;
+    }
+
+    public String getJson() {
+        return json;
+    }
+}
@@ -4,6 +4,11 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonArray;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 
@@ -17,6 +22,11 @@ public class JsonResponseBuilder {
             .disableHtmlEscaping()
             .create();
 
+    // Streamed and lean documents are for machines, so they are not pretty printed
+    private static final Gson compactGson = new GsonBuilder()
+            .disableHtmlEscaping()
+            .create();
+
     /**
      * Builds a JSON response for a successful propagation request.
      *
@@ -29,6 +39,24 @@ public class JsonResponseBuilder {
             Map<String, String> apriori,
             Map<String, String> aposteriori,
             Map<String, Object> diagnostics) {
+        return buildPropagationResponse(apriori, aposteriori, null, diagnostics);
+    }
+
+    /**
+     * Builds a JSON response for a successful propagation request that may
+     * include a sampled trajectory.
+     *
+     * @param apriori Map containing initial state (t0, r0, v0)
+     * @param aposteriori Map containing final state (tf, rf, vf)
+     * @param ephemeris Sampled states (t, r, v) in time order, or null
+     * @param diagnostics Map containing diagnostic information
+     * @return JSON string
+     */
+    public static String buildPropagationResponse(
+            Map<String, String> apriori,
+            Map<String, String> aposteriori,
+            List<Map<String, String>> ephemeris,
+            Map<String, Object> diagnostics) {
 
         JsonObject response = new JsonObject();
         response.addProperty("status", "success");
@@ -48,6 +76,18 @@ public class JsonResponseBuilder {
         aposterioriObj.addProperty("vf", aposteriori.get("vf"));
         data.add("aposteriori", aposterioriObj);
 
+        if (ephemeris != null) {
+            JsonArray samples = new JsonArray();
+            for (Map<String, String> sample : ephemeris) {
+                JsonObject sampleObj = new JsonObject();
+                sampleObj.addProperty("t", sample.get("t"));
+                sampleObj.addProperty("r", sample.get("r"));
+                sampleObj.addProperty("v", sample.get("v"));
+                samples.add(sampleObj);
+            }
+            data.add("ephemeris", samples);
+        }
+
         response.add("data", data);
 
         // Diagnostics section
@@ -58,6 +98,140 @@ public class JsonResponseBuilder {
         return gson.toJson(response);
     }
 
+    /**
+     * Builds a compact propagation response for machine clients.  The states
+     * are written straight to the output instead of through a JSON tree, and
+     * nothing is pretty printed.
+     *
+     * @param apriori Map containing initial state (t0, r0, v0)
+     * @param aposteriori Map containing final state (tf, rf, vf)
+     * @param ephemeris Sampled states (t, r, v) in time order, or null
+     * @param diagnostics Map containing diagnostic information, or null for none
+     * @return JSON string
+     */
+    public static String buildCompactPropagationResponse(
+            Map<String, String> apriori,
+            Map<String, String> aposteriori,
+            List<Map<String, String>> ephemeris,
+            Map<String, Object> diagnostics) {
+
+        StringWriter out = new StringWriter(ephemeris == null ? 256 : 256 + ephemeris.size() * 128);
+        try (JsonWriter writer = compactGson.newJsonWriter(out)) {
+            writer.beginObject();
+            writer.name("status").value("success");
+
+            writer.name("data").beginObject();
+            writer.name("apriori").beginObject();
+            writer.name("t0").value(apriori.get("t0"));
+            writer.name("r0").value(apriori.get("r0"));
+            writer.name("v0").value(apriori.get("v0"));
+            writer.endObject();
+            writer.name("aposteriori").beginObject();
+            writer.name("tf").value(aposteriori.get("tf"));
+            writer.name("rf").value(aposteriori.get("rf"));
+            writer.name("vf").value(aposteriori.get("vf"));
+            writer.endObject();
+            if (ephemeris != null) {
+                writer.name("ephemeris").beginArray();
+                for (Map<String, String> sample : ephemeris) {
+                    writer.beginObject();
+                    writer.name("t").value(sample.get("t"));
+                    writer.name("r").value(sample.get("r"));
+                    writer.name("v").value(sample.get("v"));
+                    writer.endObject();
+                }
+                writer.endArray();
+            }
+            writer.endObject();
+
+            if (diagnostics != null && !diagnostics.isEmpty()) {
+                writer.name("diagnostics");
+                compactGson.toJson(diagnostics, Map.class, writer);
+            }
+            writer.endObject();
+        } catch (IOException e) {
+            // A StringWriter does not throw
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Builds the opening part of a streamed ephemeris response, up to and
+     * including the opening bracket of the ephemeris array.
+     *
+     * @param apriori Map containing initial state (t0, r0, v0)
+     * @return JSON fragment
+     */
+    public static String buildEphemerisStreamHead(Map<String, String> apriori) {
+        JsonObject aprioriObj = new JsonObject();
+        aprioriObj.addProperty("t0", apriori.get("t0"));
+        aprioriObj.addProperty("r0", apriori.get("r0"));
+        aprioriObj.addProperty("v0", apriori.get("v0"));
+        return "{\"status\":\"success\",\"data\":{\"apriori\":" + compactGson.toJson(aprioriObj)
+                + ",\"ephemeris\":[";
+    }
+
+    /**
+     * Builds the closing part of a streamed ephemeris response.
+     *
+     * @param aposteriori Map containing final state (tf, rf, vf)
+     * @param diagnostics Map containing diagnostic information, or null for none
+     * @return JSON fragment
+     */
+    public static String buildEphemerisStreamTail(
+            Map<String, String> aposteriori,
+            Map<String, Object> diagnostics) {
+        JsonObject aposterioriObj = new JsonObject();
+        aposterioriObj.addProperty("tf", aposteriori.get("tf"));
+        aposterioriObj.addProperty("rf", aposteriori.get("rf"));
+        aposterioriObj.addProperty("vf", aposteriori.get("vf"));
+        String tail = "],\"aposteriori\":" + compactGson.toJson(aposterioriObj) + "}";
+        if (diagnostics == null) {
+            return tail + "}";
+        }
+        return tail + ",\"diagnostics\":" + compactGson.toJson(diagnostics) + "}";
+    }
+
+    /**
+     * Builds the closing part of a streamed ephemeris response that failed
+     * after the first bytes were sent.
+     *
+     * @param message Error message
+     * @return JSON fragment
+     */
+    public static String buildEphemerisStreamError(String message) {
+        JsonObject error = new JsonObject();
+        error.addProperty("message", message);
+        error.addProperty("code", 500);
+        return "]},\"error\":" + compactGson.toJson(error) + "}";
+    }
+
+    /**
+     * Builds a JSON response for a batch propagation request.
+     *
+     * @param results Per-item results in input order
+     * @param diagnostics Map containing diagnostic information
+     * @return JSON string
+     */
+    public static String buildBatchResponse(
+            List<Map<String, Object>> results,
+            Map<String, Object> diagnostics) {
+
+        JsonObject response = new JsonObject();
+        response.addProperty("status", "success");
+
+        JsonObject data = new JsonObject();
+        data.add("results", gson.toJsonTree(results));
+        response.add("data", data);
+
+        if (diagnostics != null && !diagnostics.isEmpty()) {
+            response.add("diagnostics", gson.toJsonTree(diagnostics));
+        }
+
+        return gson.toJson(response);
+    }
+
     /**
      * Builds a JSON response for the usage endpoint.
      *
@@ -74,6 +248,9 @@ public class JsonResponseBuilder {
         JsonObject endpoints = new JsonObject();
         endpoints.addProperty("usage", "/SFDaaS/orekit/propagate/usage");
         endpoints.addProperty("propagate", "/SFDaaS/orekit/propagate");
+        endpoints.addProperty("batch", "POST /SFDaaS/orekit/propagate/batch " +
+                "(JSON array or NDJSON of {t0, r0, v0, tf} objects)");
+        endpoints.addProperty("metrics", "/SFDaaS/metrics (Prometheus text format)");
         response.add("endpoints", endpoints);
 
         // Parameters
@@ -81,7 +258,7 @@ public class JsonResponseBuilder {
 
         JsonObject caching = new JsonObject();
         caching.addProperty("cf", "Caching flag (0=disabled, 1=enabled). Default: 0");
-        caching.addProperty("ca", "Caching server address(es), e.g., 127.0.0.1:11211");
+        caching.addProperty("ca", "Memcached server address(es), e.g., 127.0.0.1:11211 (optional; in-process cache only if omitted)");
         caching.addProperty("ct", "Cache TTL in seconds. Default: 60");
         caching.addProperty("ck", "Custom cache key (optional)");
         parameters.add("caching", caching);
@@ -98,6 +275,44 @@ public class JsonResponseBuilder {
         propagation.addProperty("v0", "Initial velocity vector [vx,vy,vz] in m/s");
         parameters.add("propagation", propagation);
 
+        JsonObject integrator = new JsonObject();
+        integrator.addProperty("fidelity", "Model: low (Keplerian), medium (Eckstein-Hechler, near-circular orbits only) or high (numerical). Default: high");
+        integrator.addProperty("integrator", "Integrator: dp853, dp54 (adaptive Dormand-Prince) or rk4 (fixed step). Default: dp853");
+        integrator.addProperty("tolerance", "Position tolerance in meters for dp853/dp54. Default: 1.0");
+        integrator.addProperty("minStep", "Minimum step in seconds for dp853/dp54. Default: 0.001");
+        integrator.addProperty("maxStep", "Maximum step in seconds for dp853/dp54. Default: 300");
+        integrator.addProperty("stepSize", "Fixed step in seconds for rk4. Default: 60");
+        parameters.add("integrator", integrator);
+
+        JsonObject forces = new JsonObject();
+        forces.addProperty("forces", "Comma separated force models for fidelity=high: gravity, sun, moon, drag, srp. Default: none (two-body)");
+        forces.addProperty("degree", "Spherical harmonics degree for gravity. Default: 8");
+        forces.addProperty("order", "Spherical harmonics order for gravity. Default: degree");
+        forces.addProperty("mass", "Spacecraft mass in kg. Default: 1000");
+        forces.addProperty("area", "Cross section in m^2 for drag and srp. Default: 10");
+        forces.addProperty("cd", "Drag coefficient. Default: 2.2");
+        forces.addProperty("cr", "Radiation pressure coefficient. Default: 1.5");
+        parameters.add("forces", forces);
+
+        JsonObject ephemeris = new JsonObject();
+        ephemeris.addProperty("step", "Return states every 'step' seconds from t0 to tf (optional)");
+        ephemeris.addProperty("epochs", "Comma separated epochs between t0 and tf to return states at (optional)");
+        ephemeris.addProperty("stream", "Stream the ephemeris as chunked JSON (1=enabled, 0=disabled). Default: 1");
+        parameters.add("ephemeris", ephemeris);
+
+        JsonObject output = new JsonObject();
+        output.addProperty("diag", "Diagnostics: none (states only, compact), summary (timing, caching and model, compact) " +
+                "or full (pretty printed, with request, session and environment). Default: full for browsers " +
+                "(Accept: text/html), none otherwise");
+        output.addProperty("Accept", "Header: application/octet-stream returns packed big-endian doubles " +
+                "(t, x, y, z, vx, vy, vz per state, t in seconds from t0) instead of JSON");
+        parameters.add("output", output);
+
+        JsonObject limits = new JsonObject();
+        limits.addProperty("deadline", "Seconds to wait for the result, counted from receipt and including queueing; " +
+                "504 once exceeded. Default and maximum: the server's compute.maxDeadline (300)");
+        parameters.add("limits", limits);
+
         response.add("parameters", parameters);
 
         // Example requests
@@ -0,0 +1,260 @@
+package org.spaceflightdynamics.netty;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import org.spaceflightdynamics.propagation.Cancellation;
+import org.spaceflightdynamics.utils.DataCaching;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide metrics, exported in the Prometheus text format on /metrics.
+ *
+ * Recording never takes a lock: every histogram bucket and total is a
+ * LongAdder (a striped counter), and the per route/status histograms are
+ * created once and then only read from a ConcurrentHashMap. Gauges such as
+ * the compute queue depth and the cache statistics are not recorded at all
+ * but read from their owners when the metrics are scraped.
+ */
+public final class Metrics {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /*
+     * Bucket upper bounds: seconds for latencies, a 1-2.5-5 series so the
+     * relative resolution is the same at every scale.
+     */
+    private static final double[] LATENCY_BOUNDS = {
+            0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1,
+            0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    private static final double[] EVALUATION_BOUNDS = {
+            100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000,
+            100000, 250000, 500000, 1000000, 10000000};
+
+    private static final ConcurrentHashMap<String, Histogram> requests = new ConcurrentHashMap<>();
+    private static final Histogram propagationSeconds = new Histogram(LATENCY_BOUNDS);
+    private static final Histogram integratorEvaluations = new Histogram(EVALUATION_BOUNDS);
+    private static final LongAdder cancelledDeadline = new LongAdder();
+    private static final LongAdder cancelledDisconnected = new LongAdder();
+
+    private Metrics() {
+    }
+
+    /**
+     * Records one answered request.
+     *
+     * @param route  - route label, e.g. "propagate"
+     * @param status - HTTP status code sent
+     * @param nanos  - time from receiving the request to writing the response
+     */
+    public static void recordRequest(String route, int status, long nanos) {
+        String key = route + ' ' + status;
+        Histogram histogram = requests.get(key);
+        if (histogram == null) {
+            histogram = requests.computeIfAbsent(key, k -> new Histogram(LATENCY_BOUNDS));
+        }
+        histogram.observe(nanos / 1e9);
+    }
+
+    /**
+     * Records one executed propagation (cache hits and coalesced requests
+     * are not propagations).
+     *
+     * @param nanos       - propagation wall time
+     * @param evaluations - integrator derivative evaluations, 0 for analytical models
+     */
+    public static void recordPropagation(long nanos, int evaluations) {
+        propagationSeconds.observe(nanos / 1e9);
+        if (evaluations > 0) {
+            integratorEvaluations.observe(evaluations);
+        }
+    }
+
+    /**
+     * Records one propagation abandoned because its request was cancelled,
+     * whether it was running or still waiting for a compute thread.
+     */
+    public static void recordCancellation(Cancellation.Reason reason) {
+        (reason == Cancellation.Reason.DEADLINE ? cancelledDeadline : cancelledDisconnected).increment();
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format.
+     */
+    public static String scrape(SessionManager sessionManager,
+                                PropagationExecutor propagationExecutor,
+                                DataCaching dataCaching,
+                                EventLoopGroup workerGroup) {
+        StringBuilder out = new StringBuilder(8192);
+
+        header(out, "sfdaas_http_request_duration_seconds", "histogram",
+                "Time from receiving a request to writing its response, by route and status.");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(requests).entrySet()) {
+            String[] key = entry.getKey().split(" ");
+            entry.getValue().render(out, "sfdaas_http_request_duration_seconds",
+                    "route=\"" + key[0] + "\",status=\"" + key[1] + "\"");
+        }
+
+        header(out, "sfdaas_propagation_duration_seconds", "histogram",
+                "Wall time of executed propagations.");
+        propagationSeconds.render(out, "sfdaas_propagation_duration_seconds", "");
+
+        header(out, "sfdaas_integrator_evaluations", "histogram",
+                "Derivative evaluations per numerical propagation.");
+        integratorEvaluations.render(out, "sfdaas_integrator_evaluations", "");
+
+        header(out, "sfdaas_propagations_cancelled_total", "counter",
+                "Propagations abandoned because the deadline passed or the client disconnected.");
+        sample(out, "sfdaas_propagations_cancelled_total", "reason=\"deadline\"", cancelledDeadline.sum());
+        sample(out, "sfdaas_propagations_cancelled_total", "reason=\"disconnected\"",
+                cancelledDisconnected.sum());
+
+        renderCache(out, dataCaching.getStatistics());
+
+        gauge(out, "sfdaas_sessions_active", "Live HTTP sessions.",
+                sessionManager.getActiveSessionCount());
+        header(out, "sfdaas_sessions_total", "counter", "HTTP sessions created and removed.");
+        sample(out, "sfdaas_sessions_total", "event=\"created\"", sessionManager.getCreatedCount());
+        sample(out, "sfdaas_sessions_total", "event=\"evicted\"", sessionManager.getEvictedCount());
+        sample(out, "sfdaas_sessions_total", "event=\"expired\"", sessionManager.getExpiredCount());
+        gauge(out, "sfdaas_compute_queue_depth", "Propagations waiting for a compute thread.",
+                propagationExecutor.getQueueDepth());
+        gauge(out, "sfdaas_compute_queue_capacity", "Capacity of the compute queue.",
+                propagationExecutor.getQueueSize());
+        gauge(out, "sfdaas_compute_threads_active", "Compute threads running a propagation.",
+                propagationExecutor.getActiveCount());
+        gauge(out, "sfdaas_event_loop_pending_tasks", "Tasks queued on the Netty event loops.",
+                pendingTasks(workerGroup));
+
+        renderJvm(out);
+        return out.toString();
+    }
+
+    private static void renderCache(StringBuilder out, Map<String, Object> statistics) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> l1 = (Map<String, Object>) statistics.get("l1");
+        @SuppressWarnings("unchecked")
+        Map<String, Object> l2 = (Map<String, Object>) statistics.get("l2");
+
+        header(out, "sfdaas_cache_operations_total", "counter",
+                "Cache lookups and writes by tier and outcome.");
+        sample(out, "sfdaas_cache_operations_total", "tier=\"l1\",result=\"hit\"", l1.get("hits"));
+        sample(out, "sfdaas_cache_operations_total", "tier=\"l1\",result=\"miss\"", l1.get("misses"));
+        sample(out, "sfdaas_cache_operations_total", "tier=\"l2\",result=\"hit\"", l2.get("hits"));
+        sample(out, "sfdaas_cache_operations_total", "tier=\"l2\",result=\"miss\"", l2.get("misses"));
+        sample(out, "sfdaas_cache_operations_total", "tier=\"l2\",result=\"error\"", l2.get("errors"));
+        sample(out, "sfdaas_cache_operations_total", "tier=\"l2\",result=\"set\"", l2.get("sets"));
+
+        header(out, "sfdaas_cache_l1_evictions_total", "counter", "L1 entries evicted or expired.");
+        sample(out, "sfdaas_cache_l1_evictions_total", "reason=\"size\"", l1.get("evictions"));
+        sample(out, "sfdaas_cache_l1_evictions_total", "reason=\"expired\"", l1.get("expirations"));
+
+        gauge(out, "sfdaas_cache_l1_entries", "Entries in the in-process cache.",
+                ((Number) l1.get("size")).longValue());
+        gauge(out, "sfdaas_memcached_servers_available", "Memcached servers currently connected.",
+                ((Number) l2.get("availableServers")).longValue());
+        gauge(out, "sfdaas_memcached_servers_unavailable", "Memcached servers currently unreachable.",
+                ((Number) l2.get("unavailableServers")).longValue());
+    }
+
+    private static void renderJvm(StringBuilder out) {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        header(out, "jvm_memory_heap_bytes", "gauge", "JVM heap usage.");
+        sample(out, "jvm_memory_heap_bytes", "area=\"used\"", heap.getUsed());
+        sample(out, "jvm_memory_heap_bytes", "area=\"committed\"", heap.getCommitted());
+        sample(out, "jvm_memory_heap_bytes", "area=\"max\"", heap.getMax());
+
+        header(out, "jvm_gc_collections_total", "counter", "Garbage collections by collector.");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sample(out, "jvm_gc_collections_total", "gc=\"" + gc.getName() + "\"", gc.getCollectionCount());
+        }
+        header(out, "jvm_gc_collection_seconds_total", "counter", "Time spent in garbage collection.");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sample(out, "jvm_gc_collection_seconds_total", "gc=\"" + gc.getName() + "\"",
+                    gc.getCollectionTime() / 1000.0);
+        }
+
+        gauge(out, "jvm_threads_live", "Live JVM threads.",
+                ManagementFactory.getThreadMXBean().getThreadCount());
+        gauge(out, "process_uptime_seconds", "Time since the JVM started.",
+                TimeUnit.MILLISECONDS.toSeconds(ManagementFactory.getRuntimeMXBean().getUptime()));
+    }
+
+    private static long pendingTasks(EventLoopGroup group) {
+        long pending = 0;
+        for (EventExecutor executor : group) {
+            if (executor instanceof SingleThreadEventExecutor) {
+                pending += ((SingleThreadEventExecutor) executor).pendingTasks();
+            }
+        }
+        return pending;
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, "gauge", help);
+        sample(out, name, "", value);
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, Object value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Fixed-bucket histogram. Each bucket counts the observations that fall
+     * in it alone; the cumulative counts Prometheus expects are summed when
+     * rendering.
+     */
+    private static final class Histogram {
+        private final double[] bounds;
+        private final LongAdder[] buckets;
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            // One more bucket for observations above the last bound (+Inf)
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observe(double value) {
+            int index = Arrays.binarySearch(bounds, value);
+            buckets[index >= 0 ? index : -index - 1].increment();
+            sum.add(value);
+        }
+
+        void render(StringBuilder out, String name, String labels) {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += buckets[i].sum();
+                sample(out, name + "_bucket", prefix + "le=\"" + bounds[i] + "\"", cumulative);
+            }
+            cumulative += buckets[bounds.length].sum();
+            sample(out, name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+            sample(out, name + "_sum", labels, sum.sum());
+            sample(out, name + "_count", labels, cumulative);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.spaceflightdynamics.netty;
+
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+
+/**
+ * Times every request on a connection, from the moment its head is decoded
+ * to the moment the last part of its response is written, and records it
+ * in Metrics by route and status. Sits between the HTTP codec and the
+ * aggregator so that responses written by the aggregator itself (413) and
+ * streamed responses are counted too.
+ *
+ * When the access log is enabled (log.access=info) it also logs one line per
+ * request: client, method, URI, route, status, X-Cache outcome, bytes sent
+ * and latency. The logger is asynchronous, so the event loop only hands the
+ * values over; formatting and writing happen on the logging thread.
+ *
+ * One instance per channel; all methods run on the channel's event loop.
+ */
+public class MetricsHandler extends ChannelDuplexHandler {
+
+    private static final Logger accessLog = LoggerFactory.getLogger("org.spaceflightdynamics.access");
+
+    private final String contextPath;
+
+    // Requests awaiting a response, oldest first (HTTP/1.1 pipelining)
+    private final ArrayDeque<PendingRequest> pending = new ArrayDeque<>();
+    private int status;
+    private String cache;
+    private long bytes;
+
+    public MetricsHandler(String contextPath) {
+        this.contextPath = contextPath;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            HttpRequest request = (HttpRequest) msg;
+            PendingRequest pendingRequest = new PendingRequest(route(request.uri()), System.nanoTime());
+            if (accessLog.isInfoEnabled()) {
+                pendingRequest.method = request.method().name();
+                pendingRequest.uri = request.uri();
+            }
+            pending.add(pendingRequest);
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof HttpResponse) {
+            HttpResponse response = (HttpResponse) msg;
+            status = response.status().code();
+            cache = response.headers().get(RouteHandler.CACHE_HEADER);
+            bytes = 0;
+        }
+        if (msg instanceof ByteBufHolder) {
+            bytes += ((ByteBufHolder) msg).content().readableBytes();
+        }
+        // Interim (1xx) responses such as 100 Continue do not complete a request
+        if (msg instanceof LastHttpContent && status >= 200) {
+            PendingRequest request = pending.poll();
+            if (request != null) {
+                long nanos = System.nanoTime() - request.start;
+                Metrics.recordRequest(request.route, status, nanos);
+                if (request.method != null) {
+                    accessLog.info("remote={} method={} uri=\"{}\" route={} status={} cache={} bytes={} ms={}",
+                            ctx.channel().remoteAddress(), request.method, request.uri, request.route, status,
+                            cache != null ? cache : "-", bytes, nanos / 1000 / 1000.0);
+                }
+            }
+        }
+        super.write(ctx, msg, promise);
+    }
+
+    /*
+     * Maps a request URI to a bounded set of route labels.
+     */
+    private String route(String uri) {
+        String path = new QueryStringDecoder(uri).path();
+        if (path.startsWith(contextPath)) {
+            path = path.substring(contextPath.length());
+        }
+        if (path.endsWith("/") && path.length() > 1) {
+            path = path.substring(0, path.length() - 1);
+        }
+        switch (path) {
+            case "/orekit/propagate":
+                return "propagate";
+            case "/orekit/propagate/batch":
+                return "batch";
+            case "/orekit/propagate/usage":
+                return "usage";
+            case "/metrics":
+                return "metrics";
+            default:
+                return path.isEmpty() || path.equals("/") || path.endsWith(".html") || path.endsWith(".css")
+                        || path.endsWith(".js") || path.endsWith(".ico") || path.startsWith("/static/")
+                        ? "static" : "other";
+        }
+    }
+
+    private static final class PendingRequest {
+        private final String route;
+        private final long start;
+        // Only set when the access log is enabled
+        private String method;
+        private String uri;
+
+        PendingRequest(String route, long start) {
+            this.route = route;
+            this.start = start;
+        }
+    }
+}
@@ -1,55 +1,128 @@
 package org.spaceflightdynamics.netty;
 
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.ChannelFuture;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.EventExecutor;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spaceflightdynamics.propagation.OrekitContext;
+import org.spaceflightdynamics.propagation.Propagator;
+import org.spaceflightdynamics.utils.DataCaching;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Main Netty-based HTTP server for Space Flight Dynamics as a Service (SFDaaS).
  * Standalone server that replaces the previous Tomcat servlet-based architecture.
  *
+ * The transport and socket settings are read from system properties:
+ *   server.transport        - auto (epoll when available, else NIO), epoll or nio (default: auto)
+ *   server.bossThreads      - acceptor event loop threads (default: 1, or server.acceptors)
+ *   server.workerThreads    - connection event loop threads, 0 for 2 x cores (default: 0)
+ *   server.backlog          - listen backlog (default: 1024)
+ *   server.tcpNoDelay       - disable Nagle's algorithm (default: true)
+ *   server.writeBufferLowWaterMark, server.writeBufferHighWaterMark
+ *                           - bytes queued on a connection before it stops being
+ *                             writable and streams pause (default: 32768, 65536)
+ *   server.reusePort        - bind server.acceptors sockets to the port with
+ *                             SO_REUSEPORT, epoll only (default: false)
+ *   server.acceptors        - listening sockets with server.reusePort (default: cores)
+ *
  * @author Haisam K. Ido <haisam.ido@gmail.com>
  * @license LGPL v3.0
  */
 public class NettyServer {
 
+    private static final Logger logger = LoggerFactory.getLogger(NettyServer.class);
+
     private final int port;
     private final String contextPath;
     private final SessionManager sessionManager;
+    private final PropagationExecutor propagationExecutor;
+    private final DataCaching dataCaching;
+    private final StaticFileCache staticFiles;
+
+    private final String transport = System.getProperty("server.transport", "auto");
+    private final int backlog = Integer.getInteger("server.backlog", 1024);
+    private final boolean tcpNoDelay = Boolean.parseBoolean(System.getProperty("server.tcpNoDelay", "true"));
+    private final int lowWaterMark = Integer.getInteger("server.writeBufferLowWaterMark", 32 * 1024);
+    private final int highWaterMark = Integer.getInteger("server.writeBufferHighWaterMark", 64 * 1024);
+    private final boolean reusePort = Boolean.getBoolean("server.reusePort");
 
     public NettyServer(int port, String contextPath) {
         this.port = port;
         this.contextPath = contextPath;
         this.sessionManager = new SessionManager();
+        this.propagationExecutor = new PropagationExecutor();
+        this.dataCaching = new DataCaching();
+        this.staticFiles = new StaticFileCache();
     }
 
     public void start() throws Exception {
+        // Maximum request body size; batch requests carry many states per body
+        int maxContentLength = Integer.getInteger("server.maxContentLength", 16 * 1024 * 1024);
+
+        boolean compression = ResponseCompressor.isEnabled();
+        boolean epoll = useEpoll();
+        // Several sockets on one port need SO_REUSEPORT, which only the epoll transport sets
+        int acceptors = reusePort && epoll
+                ? Integer.getInteger("server.acceptors", Runtime.getRuntime().availableProcessors())
+                : 1;
+        if (reusePort && !epoll) {
+            logger.warn("server.reusePort needs the epoll transport; binding a single acceptor");
+        }
+
         // Event loop groups for handling connections
-        EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        int bossThreads = Integer.getInteger("server.bossThreads", acceptors);
+        int workerThreads = Integer.getInteger("server.workerThreads", 0);
+        EventLoopGroup bossGroup = epoll ? new EpollEventLoopGroup(bossThreads) : new NioEventLoopGroup(bossThreads);
+        EventLoopGroup workerGroup = epoll ? new EpollEventLoopGroup(workerThreads) : new NioEventLoopGroup(workerThreads);
 
         try {
+            Class<? extends ServerSocketChannel> channelClass =
+                    epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
             ServerBootstrap bootstrap = new ServerBootstrap();
             bootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(channelClass)
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel ch) {
                             ch.pipeline()
                                     .addLast(new HttpServerCodec())
-                                    .addLast(new HttpObjectAggregator(512 * 1024)) // 512KB max request size
-                                    .addLast(new HttpRequestHandler(sessionManager, contextPath));
+                                    .addLast(new MetricsHandler(contextPath));
+                            if (compression) {
+                                ch.pipeline().addLast(ResponseCompressor.fromSystemProperties());
+                            }
+                            ch.pipeline()
+                                    .addLast(new HttpObjectAggregator(maxContentLength))
+                                    .addLast(new HttpRequestHandler(
+                                            sessionManager, contextPath, propagationExecutor, dataCaching,
+                                            workerGroup, staticFiles));
                         }
                     })
-                    .option(ChannelOption.SO_BACKLOG, 128)
-                    .childOption(ChannelOption.SO_KEEPALIVE, true);
+                    .option(ChannelOption.SO_BACKLOG, backlog)
+                    .childOption(ChannelOption.SO_KEEPALIVE, true)
+                    .childOption(ChannelOption.TCP_NODELAY, tcpNoDelay)
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                            new WriteBufferWaterMark(lowWaterMark, highWaterMark));
+            if (acceptors > 1) {
+                bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
 
             System.out.println("======================================================================");
             System.out.println("Space Flight Dynamics as a Service (SFDaaS)");
@@ -58,16 +131,36 @@ public class NettyServer {
             System.out.println("Starting Netty HTTP server...");
             System.out.println("  Port         : " + port);
             System.out.println("  Context Path : " + contextPath);
+            System.out.println("  Transport    : " + (epoll ? "epoll" : "nio") + ", "
+                    + acceptors + (acceptors > 1 ? " acceptors (SO_REUSEPORT)" : " acceptor") + ", "
+                    + bossThreads + " boss / " + countThreads(workerGroup) + " worker threads, backlog "
+                    + backlog);
+            System.out.println("  Compute Pool : " + propagationExecutor.getThreads() + " threads, queue "
+                    + propagationExecutor.getQueueSize());
+            System.out.println("  Compression  : " + (compression
+                    ? ResponseCompressor.describeEncodings() + " above "
+                    + Integer.getInteger("server.compressionThreshold", 1024) + " bytes" : "off"));
+            System.out.println("  Static Files : " + staticFiles.size() + " cached, "
+                    + staticFiles.getTotalBytes() / 1024 + " KB");
             System.out.println();
 
-            // Print OreKit data path
+            // Load the OreKit data once, before accepting connections
             String orekitDataPath = System.getProperty("orekit.data.path", "./data");
             System.out.println("OreKit Configuration:");
             System.out.println("  Data Path    : " + orekitDataPath);
+            OrekitContext orekitContext = OrekitContext.initialize(orekitDataPath);
+            System.out.println("  Data Loaded  : " + orekitContext.getLoadTimeMillis() + " ms");
+            System.out.println("  Gravity Field: "
+                    + (orekitContext.getForceModels().isGravityAvailable() ? "available" : "not available"));
+            System.out.println("  Warm-up      : " + warmUp() + " ms");
             System.out.println();
 
-            // Bind and start to accept incoming connections
-            ChannelFuture future = bootstrap.bind(port).sync();
+            // Bind and start to accept incoming connections; with SO_REUSEPORT the
+            // kernel spreads new connections over the listening sockets
+            List<Channel> serverChannels = new ArrayList<>();
+            for (int i = 0; i < acceptors; i++) {
+                serverChannels.add(bootstrap.bind(port).sync().channel());
+            }
 
             System.out.println("======================================================================");
             System.out.println("Server started successfully!");
@@ -76,6 +169,8 @@ public class NettyServer {
             System.out.println("Available endpoints:");
             System.out.println("  Usage        : http://localhost:" + port + contextPath + "/orekit/propagate/usage");
             System.out.println("  Propagation  : http://localhost:" + port + contextPath + "/orekit/propagate");
+            System.out.println("  Batch (POST) : http://localhost:" + port + contextPath + "/orekit/propagate/batch");
+            System.out.println("  Metrics      : http://localhost:" + port + contextPath + "/metrics");
             System.out.println();
             System.out.println("Press Ctrl+C to stop the server");
             System.out.println("======================================================================");
@@ -86,13 +181,17 @@ public class NettyServer {
                 System.out.println();
                 System.out.println("Shutting down server...");
                 sessionManager.shutdown();
+                propagationExecutor.shutdown();
+                dataCaching.shutdown();
                 bossGroup.shutdownGracefully();
                 workerGroup.shutdownGracefully();
                 System.out.println("Server stopped.");
             }));
 
-            // Wait until the server socket is closed
-            future.channel().closeFuture().sync();
+            // Wait until the server sockets are closed
+            for (Channel channel : serverChannels) {
+                channel.closeFuture().sync();
+            }
 
         } finally {
             // Shutdown event loop groups
@@ -101,7 +200,62 @@ public class NettyServer {
         }
     }
 
+    /**
+     * Resolves server.transport: auto picks epoll when the native library
+     * loads on this host and falls back to NIO otherwise.
+     */
+    private boolean useEpoll() {
+        switch (transport) {
+            case "auto":
+                return Epoll.isAvailable();
+            case "epoll":
+                if (!Epoll.isAvailable()) {
+                    throw new IllegalStateException("server.transport=epoll but epoll is not available",
+                            Epoll.unavailabilityCause());
+                }
+                return true;
+            case "nio":
+                return false;
+            default:
+                throw new IllegalArgumentException("Invalid server.transport: " + transport
+                        + " (expected auto, epoll or nio)");
+        }
+    }
+
+    private static int countThreads(EventLoopGroup group) {
+        int threads = 0;
+        for (EventExecutor ignored : group) {
+            threads++;
+        }
+        return threads;
+    }
+
+    /**
+     * Runs one short propagation so the first request does not pay for class
+     * loading and JIT compilation of the propagation path.
+     *
+     * @return warm-up time in milliseconds
+     */
+    private static long warmUp() {
+        long start = System.currentTimeMillis();
+        try {
+            new Propagator(
+                    "[3198022.67,2901879.73,5142928.95]",
+                    "[-6129.640631,4489.647187,1284.511245]",
+                    "2010-05-28T12:00:00.000",
+                    "2010-05-28T13:00:00.000").propagate();
+        } catch (RuntimeException e) {
+            logger.warn("Warm-up propagation failed: {}", e.getMessage());
+        }
+        return System.currentTimeMillis() - start;
+    }
+
     public static void main(String[] args) {
+        // Route spymemcached's own logging through SLF4J as well
+        if (System.getProperty("net.spy.log.LoggerImpl") == null) {
+            System.setProperty("net.spy.log.LoggerImpl", "net.spy.memcached.compat.log.SLF4JLogger");
+        }
+
         // Read configuration from system properties
         int port = Integer.parseInt(System.getProperty("server.port", "8080"));
         String contextPath = System.getProperty("server.contextPath", "/SFDaaS");
@@ -115,8 +269,7 @@ public class NettyServer {
             NettyServer server = new NettyServer(port, contextPath);
             server.start();
         } catch (Exception e) {
-            System.err.println("Failed to start server: " + e.getMessage());
-            e.printStackTrace();
+            logger.error("Failed to start server", e);
             System.exit(1);
         }
     }
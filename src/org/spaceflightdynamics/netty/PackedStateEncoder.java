@@ -0,0 +1,138 @@
+package org.spaceflightdynamics.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import org.hipparchus.geometry.euclidean.threed.Vector3D;
+import org.orekit.time.AbsoluteDate;
+import org.orekit.utils.TimeStampedPVCoordinates;
+import org.spaceflightdynamics.propagation.FinalState;
+import org.spaceflightdynamics.propagation.PropagationRequest;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Binary encoding of propagation results, selected with
+ * "Accept: application/octet-stream".
+ *
+ * A response body is a sequence of fixed-size records of seven big-endian
+ * IEEE-754 doubles: t, x, y, z, vx, vy, vz. t is in seconds from the
+ * request's t0, positions are in meters and velocities in meters/second, at
+ * full double precision. A propagation returns its ephemeris samples, if
+ * any, in time order followed by the final state at tf as the last record.
+ * A batch returns one record per item in input order, all NaN for items
+ * that failed. Errors are still reported as JSON documents.
+ */
+public final class PackedStateEncoder {
+
+    public static final String CONTENT_TYPE = "application/octet-stream";
+
+    /**
+     * Bytes per record.
+     */
+    public static final int RECORD_SIZE = 7 * Double.BYTES;
+
+    private PackedStateEncoder() {
+    }
+
+    /**
+     * Returns true if the client asked for the binary encoding: Accept names
+     * application/octet-stream with a q-value above 0 and no lower than the
+     * one JSON gets from its most specific matching range. JSON stays the
+     * default, including for "*&#47;*".
+     */
+    public static boolean accepts(HttpRequest request) {
+        String accept = request.headers().get(HttpHeaderNames.ACCEPT);
+        if (accept == null) {
+            return false;
+        }
+        double binary = 0;
+        double json = 0;
+        int jsonSpecificity = -1;
+        for (String range : accept.split(",")) {
+            String[] parts = range.split(";");
+            String type = parts[0].trim().toLowerCase(Locale.ROOT);
+            double q = quality(parts);
+            if (type.equals(CONTENT_TYPE)) {
+                binary = Math.max(binary, q);
+            }
+            int specificity = type.equals("application/json") ? 2
+                    : type.equals("application/*") ? 1
+                    : type.equals("*/*") ? 0 : -1;
+            if (specificity > jsonSpecificity) {
+                jsonSpecificity = specificity;
+                json = q;
+            }
+        }
+        return binary > 0 && binary >= json;
+    }
+
+    /*
+     * The q parameter of a media range, 1 without one and 0 if malformed.
+     */
+    private static double quality(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String parameter = parts[i].trim();
+            if (parameter.length() > 1 && (parameter.charAt(0) == 'q' || parameter.charAt(0) == 'Q')
+                    && parameter.charAt(1) == '=') {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Writes one ephemeris sample.
+     *
+     * @param t0 - epoch the record time is measured from
+     */
+    public static void writeSample(ByteBuf buf, AbsoluteDate t0, TimeStampedPVCoordinates pv) {
+        buf.writeDouble(pv.getDate().durationFrom(t0));
+        buf.writeDouble(pv.getPosition().getX());
+        buf.writeDouble(pv.getPosition().getY());
+        buf.writeDouble(pv.getPosition().getZ());
+        buf.writeDouble(pv.getVelocity().getX());
+        buf.writeDouble(pv.getVelocity().getY());
+        buf.writeDouble(pv.getVelocity().getZ());
+    }
+
+    /**
+     * Writes a final state as returned by Propagator.propagate, straight
+     * from its doubles.  Entries stored under a custom cache key by earlier
+     * versions are plain maps carrying only the formatted vectors, which are
+     * parsed instead.
+     *
+     * @param t - seconds from t0 to tf
+     */
+    public static void writeFinalState(ByteBuf buf, double t, Map<String, String> finalState) {
+        buf.writeDouble(t);
+        if (finalState instanceof FinalState) {
+            for (double component : ((FinalState) finalState).getState()) {
+                buf.writeDouble(component);
+            }
+            return;
+        }
+        writeVector(buf, PropagationRequest.parseVector("rf", finalState.get("rf")));
+        writeVector(buf, PropagationRequest.parseVector("vf", finalState.get("vf")));
+    }
+
+    private static void writeVector(ByteBuf buf, Vector3D v) {
+        buf.writeDouble(v.getX());
+        buf.writeDouble(v.getY());
+        buf.writeDouble(v.getZ());
+    }
+
+    /**
+     * Writes the record standing for a failed batch item.
+     */
+    public static void writeFailed(ByteBuf buf) {
+        for (int i = 0; i < 7; i++) {
+            buf.writeDouble(Double.NaN);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package org.spaceflightdynamics.netty;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+/**
+ * Bounded compute pool for orbit propagations.
+ * Keeps numerical integration off the Netty event loop so that a long
+ * propagation cannot stall the other connections sharing the same loop.
+ *
+ * Pending tasks are run shortest job first rather than in arrival order, so
+ * a burst of year-long propagations does not hold up one-minute ones. Each
+ * task is ordered by its arrival time plus its estimated cost converted to
+ * time (compute.costNanos per unit, see PropagationCost): a task is only
+ * overtaken by later arrivals for about as long as it is itself expected to
+ * run, so long tasks age to the front instead of starving.
+ *
+ * Configured via system properties:
+ *   compute.threads    - number of compute threads (default: available cores)
+ *   compute.queueSize  - pending tasks allowed before rejecting (default: 2 x threads)
+ *   compute.retryAfter - Retry-After value in seconds sent with 503 responses (default: 1)
+ *   compute.costNanos  - nanoseconds of queueing one unit of estimated cost is worth (default: 2000)
+ *   compute.batchCost  - cost batches and their helpers are scheduled at (default: 1e8)
+ */
+public class PropagationExecutor {
+    /**
+     * Cost at which batch requests, whose items are only costed once they
+     * run, and the helpers they fan out to are scheduled.
+     */
+    public static final double BATCH_COST =
+            Double.parseDouble(System.getProperty("compute.batchCost", "1e8"));
+
+    private static final double COST_NANOS =
+            Double.parseDouble(System.getProperty("compute.costNanos", "2000"));
+
+    private final ThreadPoolExecutor executor;
+    private final int threads;
+    private final int queueSize;
+    private final int retryAfterSeconds;
+
+    // Tasks accepted but not yet started; the priority queue itself is unbounded
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+
+    public PropagationExecutor() {
+        this(configuredThreads(),
+             Integer.getInteger("compute.queueSize", 2 * configuredThreads()),
+             Integer.getInteger("compute.retryAfter", 1));
+    }
+
+    public PropagationExecutor(int threads, int queueSize, int retryAfterSeconds) {
+        this.threads = Math.max(1, threads);
+        this.queueSize = Math.max(1, queueSize);
+        this.retryAfterSeconds = Math.max(0, retryAfterSeconds);
+        this.executor = new ThreadPoolExecutor(
+                this.threads, this.threads,
+                0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(this.queueSize),
+                new ComputeThreadFactory(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Queues a task for execution on the compute pool.
+     *
+     * @param cost - estimated cost of the task, which orders it in the queue
+     * @return false if the queue is full and the task was not accepted
+     */
+    public boolean submit(Runnable task, double cost) {
+        if (pending.incrementAndGet() > queueSize) {
+            pending.decrementAndGet();
+            return false;
+        }
+        try {
+            executor.execute(new ScheduledTask(task, cost));
+            return true;
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Runs task for every index in [0, count) using the calling thread plus
+     * as many idle compute threads as will take the work, and returns once all
+     * indices are done. The caller always makes progress itself, so this is
+     * safe to call from a compute thread even when the queue is full.
+     * The task must handle its own exceptions.
+     */
+    public void forEach(int count, IntConsumer task) throws InterruptedException {
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(count);
+
+        Runnable worker = () -> {
+            int index;
+            while ((index = next.getAndIncrement()) < count) {
+                try {
+                    task.accept(index);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+
+        // Helpers that start late, or are rejected, simply find no work left
+        int helpers = Math.min(threads - 1, count - 1);
+        for (int i = 0; i < helpers; i++) {
+            if (!submit(worker, BATCH_COST)) {
+                break;
+            }
+        }
+
+        worker.run();
+        done.await();
+    }
+
+    /**
+     * Returns the number of configured compute threads.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Returns the capacity of the pending task queue.
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Returns the number of tasks waiting for a compute thread.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns the number of compute threads currently running a task.
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Returns the Retry-After value (seconds) to send when the queue is full.
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * Stops accepting tasks and waits briefly for running propagations to finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int configuredThreads() {
+        return Integer.getInteger("compute.threads", Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * A task ordered by its virtual deadline: arrival time plus estimated
+     * cost as time. Ties go to the earlier arrival.
+     */
+    private final class ScheduledTask implements Runnable, Comparable<ScheduledTask> {
+        private final Runnable task;
+        private final long deadline;
+        private final long order = sequence.getAndIncrement();
+
+        ScheduledTask(Runnable task, double cost) {
+            this.task = task;
+            // Saturates rather than overflowing for absurd costs
+            this.deadline = System.nanoTime() + (long) Math.min(Math.max(cost, 0) * COST_NANOS, Long.MAX_VALUE / 4);
+        }
+
+        @Override
+        public void run() {
+            pending.decrementAndGet();
+            task.run();
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            // Differences, as nanoTime values may wrap
+            long difference = deadline - other.deadline;
+            if (difference != 0) {
+                return difference < 0 ? -1 : 1;
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+
+    /**
+     * Names compute threads so they are recognizable in thread dumps.
+     */
+    private static class ComputeThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "sfdaas-compute-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.spaceflightdynamics.netty;
+
+import io.netty.handler.codec.compression.Brotli;
+import io.netty.handler.codec.compression.CompressionOptions;
+import io.netty.handler.codec.compression.StandardCompressionOptions;
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compresses responses with the best encoding the client's Accept-Encoding
+ * allows: brotli when brotli4j is on the class path, then gzip, then
+ * deflate. Full responses smaller than the threshold are sent as they are,
+ * since compressing a few hundred bytes costs more than it saves; streamed
+ * ephemerides are always compressed.
+ *
+ * Responses that already carry a Content-Encoding, such as the pre-compressed
+ * static files, pass through, and so do responses with an ETag: that validator
+ * names the exact bytes the static cache holds.
+ *
+ * Configured via system properties:
+ *   server.compression          - compress responses (default: true)
+ *   server.compressionThreshold - smallest full response body compressed, in bytes (default: 1024)
+ *   server.compressionLevel     - gzip/deflate level, 1 (fastest) to 9 (smallest) (default: 6)
+ */
+public class ResponseCompressor extends HttpContentCompressor {
+
+    public ResponseCompressor(int threshold, int level) {
+        super(threshold, options(level));
+    }
+
+    /**
+     * Returns true if server.compression is enabled.
+     */
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(System.getProperty("server.compression", "true"));
+    }
+
+    /**
+     * Creates a compressor configured from the system properties.
+     */
+    public static ResponseCompressor fromSystemProperties() {
+        return new ResponseCompressor(Integer.getInteger("server.compressionThreshold", 1024),
+                Integer.getInteger("server.compressionLevel", 6));
+    }
+
+    /**
+     * Lists the encodings offered, in order of preference.
+     */
+    public static String describeEncodings() {
+        return Brotli.isAvailable() ? "br, gzip, deflate" : "gzip, deflate";
+    }
+
+    private static CompressionOptions[] options(int level) {
+        List<CompressionOptions> options = new ArrayList<>(3);
+        // brotli() needs the optional brotli4j classes, so only touch it when they loaded
+        if (Brotli.isAvailable()) {
+            options.add(StandardCompressionOptions.brotli());
+        }
+        options.add(StandardCompressionOptions.gzip(level, 15, 8));
+        options.add(StandardCompressionOptions.deflate(level, 15, 8));
+        return options.toArray(new CompressionOptions[0]);
+    }
+
+    @Override
+    protected Result beginEncode(HttpResponse response, String acceptEncoding) throws Exception {
+        if (response.headers().contains(HttpHeaderNames.ETAG)) {
+            return null;
+        }
+        Result result = super.beginEncode(response, acceptEncoding);
+        if (result != null) {
+            response.headers().add(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        }
+        return result;
+    }
+}
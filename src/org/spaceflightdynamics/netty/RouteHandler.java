@@ -1,23 +1,76 @@
 package org.spaceflightdynamics.netty;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonStreamParser;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
 import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.orekit.time.AbsoluteDate;
+import org.orekit.utils.TimeStampedPVCoordinates;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spaceflightdynamics.propagation.Cancellation;
+import org.spaceflightdynamics.propagation.InFlightPropagations;
+import org.spaceflightdynamics.propagation.OrekitContext;
+import org.spaceflightdynamics.propagation.PropagationCancelledException;
+import org.spaceflightdynamics.propagation.PropagationCost;
+import org.spaceflightdynamics.propagation.PropagationRequest;
 import org.spaceflightdynamics.propagation.Propagator;
+import org.spaceflightdynamics.utils.DataCaching;
+import org.spaceflightdynamics.utils.QualityControlInput;
 
-import net.spy.memcached.AddrUtil;
-import net.spy.memcached.BinaryConnectionFactory;
-import net.spy.memcached.MemcachedClient;
-
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * Handles routing and business logic for different HTTP endpoints.
  */
 public class RouteHandler {
 
+    private static final Logger logger = LoggerFactory.getLogger(RouteHandler.class);
+
+    /**
+     * Response header telling whether a cached propagation was served from
+     * the cache (HIT) or computed (MISS).
+     */
+    public static final String CACHE_HEADER = "X-Cache";
+
+    /**
+     * Identical propagations running concurrently share a single computation.
+     */
+    private static final InFlightPropagations inFlightPropagations = new InFlightPropagations();
+
+    /**
+     * Upper bound on the number of items in one batch request (batch.maxItems).
+     */
+    private static final int MAX_BATCH_ITEMS = Integer.getInteger("batch.maxItems", 100000);
+
+    /**
+     * Diagnostics levels (diag parameter): none returns only the states,
+     * summary adds timing, caching and the propagation model, and full adds
+     * the assumptions and the request, session and environment echo.
+     */
+    public static final String DIAG_NONE = "none";
+    public static final String DIAG_SUMMARY = "summary";
+    public static final String DIAG_FULL = "full";
+
     /**
      * Handles the /orekit/propagate/usage endpoint.
      * Returns usage documentation in JSON format.
@@ -29,19 +82,33 @@ public class RouteHandler {
     /**
      * Handles the /orekit/propagate endpoint.
      * Performs orbit propagation with optional caching.
+     *
+     * @param binary          - encode the states with PackedStateEncoder instead of JSON
+     * @param allocator       - the channel's allocator, for binary responses
+     * @param responseHeaders - receives X-Cache (HIT or MISS) when caching applies
+     * @param cancellation    - the request's deadline and disconnection token
+     * @return the JSON document, a ByteBuf of packed states, a JsonResponse
+     *         for errors, null once a streamed response has been written, or a
+     *         CompletableFuture of any of the first three for a propagation
+     *         that may still be running for another request
+     * @throws PropagationCancelledException if the request is cancelled
+     *         before a response has been started; the future fails with it
+     *         when the propagation it waits on is
      */
-    public static String handlePropagate(
+    public static Object handlePropagate(
             FullHttpRequest request,
             HttpSession session,
             Map<String, String> params,
-            String remoteAddress) {
+            String remoteAddress,
+            DataCaching dataCaching,
+            EphemerisStreamWriter stream,
+            boolean binary,
+            ByteBufAllocator allocator,
+            HttpHeaders responseHeaders,
+            Cancellation cancellation) {
 
         long startTime = System.currentTimeMillis();
 
-        // Date formatter for diagnostics
-        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS Z");
-        df.setTimeZone(TimeZone.getTimeZone("UTC"));
-
         // Extract parameters
         String ca = params.get("ca"); // Cache server addresses
         String cf = params.getOrDefault("cf", "0"); // Cache flag (0=disabled, 1=enabled)
@@ -58,17 +125,29 @@ public class RouteHandler {
 
         // Validate required parameters
         if (t0 == null || r0 == null || v0 == null || tf == null) {
-            return JsonResponseBuilder.buildMissingParametersError(
-                    new String[]{"t0", "r0", "v0", "tf"});
+            return new JsonResponse(HttpResponseStatus.BAD_REQUEST,
+                    JsonResponseBuilder.buildMissingParametersError(new String[]{"t0", "r0", "v0", "tf"}));
         }
 
-        // Update session timeout if requested
-        if (sf != null && st != null) {
-            try {
-                session.setMaxInactiveInterval(Integer.parseInt(st));
-            } catch (NumberFormatException e) {
-                // Ignore invalid session timeout
+        // Parse and validate the propagation inputs
+        PropagationRequest propagationRequest;
+        String diag;
+        int ttl;
+        try {
+            propagationRequest = PropagationRequest.parse(params);
+            propagationRequest.setCancellation(cancellation);
+            diag = diagnosticsLevel(request, params);
+            ttl = QualityControlInput.parseInteger("ct", ct);
+            // Servers the cache would not use are refused, not silently skipped
+            if ("1".equals(cf) && !propagationRequest.isEphemeris() && isRemoteCache(ca)) {
+                dataCaching.checkServers(ca);
+            }
+            // Update session timeout if requested; a session exists only for sf=1
+            if (session != null && "1".equals(sf) && st != null) {
+                session.setMaxInactiveInterval(QualityControlInput.parseInteger("st", st));
             }
+        } catch (IllegalArgumentException e) {
+            return JsonResponse.error(e.getMessage(), 400);
         }
 
         // Build apriori state for response
@@ -77,90 +156,129 @@ public class RouteHandler {
         apriori.put("r0", r0);
         apriori.put("v0", v0);
 
+        // Long ephemerides are streamed as they are produced rather than built in memory
+        if (propagationRequest.isEphemeris() && stream != null && !"0".equals(params.get("stream"))) {
+            return streamEphemeris(propagationRequest, apriori, tf, diag, binary, stream, startTime);
+        }
+
         // Initialize diagnostics
         Map<String, Object> diagnostics = new HashMap<>();
         Map<String, Object> cachingInfo = new HashMap<>();
         Map<String, Object> timingInfo = new HashMap<>();
+        Map<String, Object> coalescingInfo = new HashMap<>();
 
-        // Build cache key
-        String username = System.getProperty("user.name");
-        String sessionId = session.getId();
-        String cacheKey = username + "]|[" + sessionId + "]|[" + t0 + "]|[" + r0 + "]|[" + v0 + "]|[" + tf;
+        // Build cache key from the parsed inputs so equivalent requests share entries
+        String cacheKey = propagationRequest.getCacheKey();
         if (ck != null) {
             cacheKey = ck; // Use custom cache key if provided
         }
 
-        // Propagation results
-        Map<String, String> aposteriori = new HashMap<>();
-        boolean cacheHit = false;
-        long propagationStart = 0;
-        long propagationEnd = 0;
+        // Caching logic: in-process L1 first, then memcached L2 when servers are given.
+        // Ephemeris requests are neither cached nor coalesced.
+        boolean caching = "1".equals(cf) && !propagationRequest.isEphemeris();
+        if (caching) {
+            cachingInfo.put("enabled", true);
+            cachingInfo.put("servers", isRemoteCache(ca) ? ca.trim().split("\\s+") : new String[0]);
+            cachingInfo.put("ttl", ttl);
+            cachingInfo.put("key", cacheKey);
+        } else {
+            cachingInfo.put("enabled", false);
+            if ("1".equals(cf)) {
+                cachingInfo.put("note", "Caching does not apply to ephemeris requests");
+            }
+        }
 
+        long propagationStart = System.currentTimeMillis();
+        List<TimeStampedPVCoordinates> samples = new ArrayList<>();
+        CompletableFuture<HashMap<String, String>> pending;
         try {
-            // Caching logic
-            if ("1".equals(cf)) {
-                if (ca == null || ca.trim().isEmpty()) {
-                    return JsonResponseBuilder.buildErrorResponse(
-                            "Caching enabled (cf=1) but no cache server address provided (ca parameter missing)",
-                            400);
+            if (propagationRequest.isEphemeris()) {
+                pending = CompletableFuture.completedFuture(
+                        measured(() -> new Propagator(propagationRequest).propagate(samples::add)));
+            } else {
+                pending = resolveFinalState(
+                        propagationRequest, caching, cacheKey, ca, ttl,
+                        dataCaching, cachingInfo, coalescingInfo);
+            }
+        } catch (Exception e) {
+            return propagationError(request, e);
+        }
+
+        // A request that joined a running propagation is answered from the
+        // thread that completes it rather than holding one of its own
+        return pending.<Object>handle((finalState, failure) -> {
+            if (failure != null) {
+                return propagationError(request, unwrap(failure));
+            }
+            long propagationEnd = System.currentTimeMillis();
+            boolean cacheHit = caching && Boolean.TRUE.equals(cachingInfo.get("hit"));
+            if (caching) {
+                responseHeaders.set(CACHE_HEADER, cacheHit ? "HIT" : "MISS");
+            }
+
+            // Propagation results
+            Map<String, String> aposteriori = new HashMap<>();
+            List<Map<String, String>> ephemeris = null;
+
+            if (binary) {
+                ByteBuf packed = allocator.buffer(
+                        (samples.size() + 1) * PackedStateEncoder.RECORD_SIZE);
+                try {
+                    AbsoluteDate t0Date = propagationRequest.getInitialEpoch();
+                    for (TimeStampedPVCoordinates pv : samples) {
+                        PackedStateEncoder.writeSample(packed, t0Date, pv);
+                    }
+                    PackedStateEncoder.writeFinalState(packed,
+                            propagationRequest.getFinalEpoch().durationFrom(t0Date), finalState);
+                } catch (RuntimeException e) {
+                    packed.release();
+                    throw e;
                 }
+                return packed;
+            }
 
-                cachingInfo.put("enabled", true);
-                cachingInfo.put("servers", ca.split("\\s+"));
-                cachingInfo.put("ttl", Integer.parseInt(ct));
-                cachingInfo.put("key", cacheKey);
+            if (propagationRequest.isEphemeris()) {
+                ephemeris = new ArrayList<>(samples.size());
+                for (TimeStampedPVCoordinates pv : samples) {
+                    ephemeris.add(Propagator.formatSample(pv));
+                }
+            }
 
-                // Try to get from cache
-                MemcachedClient cache = new MemcachedClient(
-                        new BinaryConnectionFactory(),
-                        AddrUtil.getAddresses(ca));
+            // The entry may have been stored by a request spelling tf differently
+            aposteriori.put("tf", tf);
+            aposteriori.put("rf", finalState.get("rf"));
+            aposteriori.put("vf", finalState.get("vf"));
 
-                Object cachedContent = cache.get(cacheKey);
+            if (DIAG_NONE.equals(diag)) {
+                return JsonResponseBuilder.buildCompactPropagationResponse(apriori, aposteriori, ephemeris, null);
+            }
 
-                if (cachedContent != null) {
-                    // Cache hit
-                    cacheHit = true;
-                    @SuppressWarnings("unchecked")
-                    HashMap<String, String> finalState = (HashMap<String, String>) cachedContent;
+            if (DIAG_SUMMARY.equals(diag)) {
+                if (!cacheHit) {
+                    timingInfo.put("propagationTimeMs", propagationEnd - propagationStart);
+                }
+                timingInfo.put("totalTimeMs", System.currentTimeMillis() - startTime);
+                diagnostics.put("timing", timingInfo);
+                diagnostics.put("caching", cachingInfo);
+                putModelInfo(diagnostics, propagationRequest, finalState);
+                if (!coalescingInfo.isEmpty()) {
+                    diagnostics.put("coalescing", coalescingInfo);
+                }
+                return JsonResponseBuilder.buildCompactPropagationResponse(apriori, aposteriori, ephemeris, diagnostics);
+            }
 
-                    aposteriori.put("tf", finalState.get("tf"));
-                    aposteriori.put("rf", finalState.get("rf"));
-                    aposteriori.put("vf", finalState.get("vf"));
+            // Date formatter for full diagnostics
+            SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS Z");
+            df.setTimeZone(TimeZone.getTimeZone("UTC"));
 
-                    cachingInfo.put("hit", true);
+            if (caching) {
+                if (cacheHit) {
                     cachingInfo.put("retrievedAt", df.format(new Date()));
-                    cache.shutdown();
                 } else {
-                    // Cache miss - need to propagate
-                    cachingInfo.put("hit", false);
-
-                    propagationStart = System.currentTimeMillis();
-                    Propagator propagator = new Propagator(r0, v0, t0, tf);
-                    HashMap<String, String> finalState = propagator.propagate();
-                    propagationEnd = System.currentTimeMillis();
-
-                    aposteriori.put("tf", finalState.get("tf"));
-                    aposteriori.put("rf", finalState.get("rf"));
-                    aposteriori.put("vf", finalState.get("vf"));
-
-                    // Store in cache
-                    cache.set(cacheKey, Integer.parseInt(ct), finalState);
                     cachingInfo.put("storedAt", df.format(new Date()));
-                    cachingInfo.put("expiresAt", df.format(new Date(System.currentTimeMillis() + Integer.parseInt(ct) * 1000L)));
-                    cache.shutdown();
+                    cachingInfo.put("expiresAt", df.format(new Date(System.currentTimeMillis() + ttl * 1000L)));
                 }
-            } else {
-                // No caching - just propagate
-                cachingInfo.put("enabled", false);
-
-                propagationStart = System.currentTimeMillis();
-                Propagator propagator = new Propagator(r0, v0, t0, tf);
-                HashMap<String, String> finalState = propagator.propagate();
-                propagationEnd = System.currentTimeMillis();
-
-                aposteriori.put("tf", finalState.get("tf"));
-                aposteriori.put("rf", finalState.get("rf"));
-                aposteriori.put("vf", finalState.get("vf"));
+                cachingInfo.put("statistics", dataCaching.getStatistics());
             }
 
             // Build assumptions section
@@ -170,7 +288,7 @@ public class RouteHandler {
             assumptions.put("3", "The frame is assumed to be the J2000 Earth-centered one.");
 
             // Build timing info with propagation timestamps
-            if (propagationStart > 0 && propagationEnd > 0) {
+            if (!cacheHit) {
                 timingInfo.put("propagationTimeMs", propagationEnd - propagationStart);
                 timingInfo.put("propagationStart", df.format(new Date(propagationStart)));
                 timingInfo.put("propagationEnd", df.format(new Date(propagationEnd)));
@@ -181,17 +299,20 @@ public class RouteHandler {
             timingInfo.put("runStart", df.format(new Date(startTime)));
             timingInfo.put("runStop", df.format(new Date(endTime)));
 
-            // Build session info with detailed properties
-            Map<String, Object> sessionInfo = new HashMap<>();
-            sessionInfo.put("jsessionid", session.getId());
-            sessionInfo.put("created", df.format(new Date(session.getCreationTime())));
-            sessionInfo.put("creationTime", session.getCreationTime());
-            sessionInfo.put("lastAccessedTime", session.getLastAccessedTime());
-            sessionInfo.put("lastAccessed", df.format(new Date(session.getLastAccessedTime())));
-            sessionInfo.put("maxInactiveInterval", session.getMaxInactiveInterval());
-            sessionInfo.put("expiryIn", session.getMaxInactiveInterval() + " seconds");
-            long expiryTime = session.getLastAccessedTime() + (session.getMaxInactiveInterval() * 1000L);
-            sessionInfo.put("expiryDate", df.format(new Date(expiryTime)));
+            // Build session info with detailed properties (only requests with sf=1 or a cookie have one)
+            Map<String, Object> sessionInfo = null;
+            if (session != null) {
+                sessionInfo = new HashMap<>();
+                sessionInfo.put("jsessionid", session.getId());
+                sessionInfo.put("created", df.format(new Date(session.getCreationTime())));
+                sessionInfo.put("creationTime", session.getCreationTime());
+                sessionInfo.put("lastAccessedTime", session.getLastAccessedTime());
+                sessionInfo.put("lastAccessed", df.format(new Date(session.getLastAccessedTime())));
+                sessionInfo.put("maxInactiveInterval", session.getMaxInactiveInterval());
+                sessionInfo.put("expiryIn", session.getMaxInactiveInterval() + " seconds");
+                long expiryTime = session.getLastAccessedTime() + (session.getMaxInactiveInterval() * 1000L);
+                sessionInfo.put("expiryDate", df.format(new Date(expiryTime)));
+            }
 
             // Build request info with full details
             Map<String, Object> requestInfo = new HashMap<>();
@@ -237,28 +358,612 @@ public class RouteHandler {
             // Build OreKit info
             Map<String, String> orekitInfo = new HashMap<>();
             orekitInfo.put("version", "13.1.2");
-            String orekitDataPath = System.getProperty("orekit.data.path", "./data");
-            orekitInfo.put("dataPath", orekitDataPath);
+            orekitInfo.put("dataPath", OrekitContext.getInstance().getDataPath());
             orekitInfo.put("orekitDataPathProperty", "orekit.data.path");
+            orekitInfo.put("gravityField",
+                    OrekitContext.getInstance().getForceModels().isGravityAvailable() ? "available" : "unavailable");
 
             // Assemble diagnostics
             diagnostics.put("assumptions", assumptions);
             diagnostics.put("timing", timingInfo);
             diagnostics.put("propagation", timingInfo); // Alias for compatibility
             diagnostics.put("caching", cachingInfo);
-            diagnostics.put("session", sessionInfo);
+            putModelInfo(diagnostics, propagationRequest, finalState);
+            if (!coalescingInfo.isEmpty()) {
+                diagnostics.put("coalescing", coalescingInfo);
+            }
+            if (sessionInfo != null) {
+                diagnostics.put("session", sessionInfo);
+            }
             diagnostics.put("request", requestInfo);
             diagnostics.put("system", systemInfo);
             diagnostics.put("orekit", orekitInfo);
 
-            return JsonResponseBuilder.buildPropagationResponse(apriori, aposteriori, diagnostics);
+            return JsonResponseBuilder.buildPropagationResponse(apriori, aposteriori, ephemeris, diagnostics);
+        });
+    }
+
+    /**
+     * Builds the error response for a failed propagation. Inputs that parse
+     * but that the selected model cannot propagate are the client's fault
+     * (400), anything else is logged and reported as a 500.
+     *
+     * @throws PropagationCancelledException if that is what it failed with,
+     *         to be answered with a real status (504), or not at all, by the caller
+     */
+    private static JsonResponse propagationError(FullHttpRequest request, Throwable failure) {
+        if (failure instanceof PropagationCancelledException) {
+            throw (PropagationCancelledException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure instanceof IllegalArgumentException) {
+            return JsonResponse.error(failure.getMessage(), 400);
+        }
+        logger.error("Propagation failed for {}", request.uri(), failure);
+        return JsonResponse.error("Error during propagation: " + failure.getMessage(), 500);
+    }
+
+    /**
+     * Resolves the diag parameter.  Without it, browsers (Accept: text/html)
+     * get full diagnostics and every other client gets none.
+     */
+    private static String diagnosticsLevel(FullHttpRequest request, Map<String, String> params) {
+        String diag = params.get("diag");
+        if (diag == null) {
+            String accept = request.headers().get(HttpHeaderNames.ACCEPT);
+            return accept != null && accept.contains("text/html") ? DIAG_FULL : DIAG_NONE;
+        }
+        switch (diag) {
+            case DIAG_NONE:
+            case DIAG_SUMMARY:
+            case DIAG_FULL:
+                return diag;
+            default:
+                throw new IllegalArgumentException(
+                        "Invalid diag: " + diag + " (expected none, summary or full)");
+        }
+    }
+
+    /**
+     * Creates the cancellation token of a request from its deadline
+     * parameter, the seconds the client is prepared to wait. Without one, or
+     * with a longer one, compute.maxDeadline applies.
+     *
+     * @throws IllegalArgumentException if deadline is not a positive number
+     */
+    public static Cancellation parseDeadline(Map<String, String> params) {
+        String deadline = params.get("deadline");
+        if (deadline == null) {
+            return Cancellation.withDeadline(Double.NaN);
+        }
+        double seconds = QualityControlInput.parseNumber("deadline", deadline);
+        if (!(seconds > 0)) {
+            throw new IllegalArgumentException("deadline must be a positive number of seconds, got " + deadline);
+        }
+        return Cancellation.withDeadline(seconds);
+    }
+
+    /**
+     * Builds the 504 error for a request whose deadline passed.
+     */
+    public static String buildDeadlineError(PropagationCancelledException e) {
+        return JsonResponseBuilder.buildErrorResponse(e.getMessage()
+                + ": ask for a longer deadline (at most the server's), or a cheaper propagation", 504);
+    }
+
+    /**
+     * Builds the 422 error for a request whose estimated cost is above compute.maxCost.
+     */
+    public static String buildCostLimitError(double cost) {
+        return JsonResponseBuilder.buildErrorResponse(String.format(
+                "Estimated cost %.3g exceeds the server limit of %.3g: shorten the span, "
+                        + "increase the step size or tolerance, or lower the gravity degree",
+                cost, PropagationCost.getMaxCost()), 422);
+    }
+
+    /**
+     * Adds the propagation model to diagnostics: the fidelity level and, for
+     * numerical propagations, the integrator, the settings that apply to it,
+     * the number of derivative evaluations it took (from the original
+     * propagation when the result came from cache) and the force models.
+     * The estimated cost and the cost of those evaluations go under "cost".
+     */
+    private static void putModelInfo(
+            Map<String, Object> diagnostics,
+            PropagationRequest propagationRequest,
+            Map<String, String> finalState) {
+
+        diagnostics.put("fidelity", propagationRequest.getFidelity());
+
+        String evaluations = finalState.get("evaluations");
+        Map<String, Object> costInfo = new HashMap<>();
+        costInfo.put("estimated", Math.round(propagationRequest.getEstimatedCost()));
+        if (evaluations != null) {
+            costInfo.put("actual", Math.round(
+                    PropagationCost.actual(propagationRequest, Integer.parseInt(evaluations))));
+        }
+        diagnostics.put("cost", costInfo);
+        if (!propagationRequest.isNumerical()) {
+            return;
+        }
+
+        Map<String, Object> integratorInfo = new HashMap<>();
+        integratorInfo.put("name", propagationRequest.getIntegrator());
+        if (propagationRequest.isAdaptive()) {
+            integratorInfo.put("tolerance", propagationRequest.getPositionTolerance());
+            integratorInfo.put("minStep", propagationRequest.getMinStep());
+            integratorInfo.put("maxStep", propagationRequest.getMaxStep());
+        } else {
+            integratorInfo.put("stepSize", propagationRequest.getStepSize());
+        }
+        if (evaluations != null) {
+            integratorInfo.put("evaluations", Integer.parseInt(evaluations));
+        }
+        diagnostics.put("integrator", integratorInfo);
+
+        Map<String, Object> forcesInfo = new HashMap<>();
+        forcesInfo.put("models", propagationRequest.getForces());
+        if (propagationRequest.hasForce(PropagationRequest.GRAVITY)) {
+            forcesInfo.put("degree", propagationRequest.getDegree());
+            forcesInfo.put("order", propagationRequest.getOrder());
+        }
+        if (propagationRequest.hasForce(PropagationRequest.DRAG)
+                || propagationRequest.hasForce(PropagationRequest.SRP)) {
+            forcesInfo.put("mass", propagationRequest.getMass());
+            forcesInfo.put("area", propagationRequest.getArea());
+        }
+        if (propagationRequest.hasForce(PropagationRequest.DRAG)) {
+            forcesInfo.put("cd", propagationRequest.getDragCoefficient());
+        }
+        if (propagationRequest.hasForce(PropagationRequest.SRP)) {
+            forcesInfo.put("cr", propagationRequest.getReflectionCoefficient());
+        }
+        diagnostics.put("forces", forcesInfo);
+    }
+
+    /**
+     * Propagates an ephemeris request, writing samples to the client as the
+     * integrator produces them.
+     *
+     * @return null once the response has been streamed, or an error
+     *         response if the propagation failed before anything was sent
+     */
+    private static JsonResponse streamEphemeris(
+            PropagationRequest propagationRequest,
+            Map<String, String> apriori,
+            String tf,
+            String diag,
+            boolean binary,
+            EphemerisStreamWriter stream,
+            long startTime) {
+
+        try {
+            Propagator propagator = new Propagator(propagationRequest);
+
+            AbsoluteDate t0 = propagationRequest.getInitialEpoch();
+            if (binary) {
+                stream.startBinary(t0);
+            } else {
+                stream.start(JsonResponseBuilder.buildEphemerisStreamHead(apriori));
+            }
+            long propagationStart = System.currentTimeMillis();
+            HashMap<String, String> finalState = measured(() -> propagator.propagate(stream));
+            long propagationEnd = System.currentTimeMillis();
+
+            if (binary) {
+                stream.finishBinary(propagationRequest.getFinalEpoch().durationFrom(t0), finalState);
+                return null;
+            }
+
+            Map<String, String> aposteriori = new HashMap<>();
+            aposteriori.put("tf", tf);
+            aposteriori.put("rf", finalState.get("rf"));
+            aposteriori.put("vf", finalState.get("vf"));
+
+            if (DIAG_NONE.equals(diag)) {
+                stream.finish(JsonResponseBuilder.buildEphemerisStreamTail(aposteriori, null));
+                return null;
+            }
+
+            Map<String, Object> timingInfo = new HashMap<>();
+            timingInfo.put("propagationTimeMs", propagationEnd - propagationStart);
+            timingInfo.put("totalTimeMs", propagationEnd - startTime);
+
+            Map<String, Object> ephemerisInfo = new HashMap<>();
+            ephemerisInfo.put("samples", stream.getSampleCount());
+            ephemerisInfo.put("streamed", true);
+
+            Map<String, Object> diagnostics = new HashMap<>();
+            diagnostics.put("timing", timingInfo);
+            putModelInfo(diagnostics, propagationRequest, finalState);
+            diagnostics.put("ephemeris", ephemerisInfo);
+
+            stream.finish(JsonResponseBuilder.buildEphemerisStreamTail(aposteriori, diagnostics));
+            return null;
 
         } catch (Exception e) {
-            e.printStackTrace();
-            return JsonResponseBuilder.buildErrorResponse(
-                    "Error during propagation: " + e.getMessage(),
-                    500);
+            if (stream.isStarted()) {
+                stream.abort(JsonResponseBuilder.buildEphemerisStreamError(
+                        e instanceof PropagationCancelledException
+                                ? e.getMessage()
+                                : "Error during propagation: " + e.getMessage()));
+                return null;
+            }
+            if (e instanceof PropagationCancelledException) {
+                throw (PropagationCancelledException) e;
+            }
+            if (e instanceof IllegalArgumentException) {
+                return JsonResponse.error(e.getMessage(), 400);
+            }
+            logger.error("Ephemeris propagation failed", e);
+            return JsonResponse.error("Error during propagation: " + e.getMessage(), 500);
+        }
+    }
+
+    /**
+     * Handles POST /orekit/propagate/batch.
+     * The body is a JSON array, or newline-delimited JSON, of objects with the
+     * keys t0, r0, v0 and tf. Items are propagated in parallel on the compute
+     * pool and reported in input order, each with its own result or error.
+     * The cf, ca and ct query parameters apply to every item, and the
+     * deadline to the batch as a whole.
+     *
+     * @param binary       - encode the final states with PackedStateEncoder instead of JSON
+     * @param allocator    - the channel's allocator, for binary responses
+     * @param cancellation - the request's deadline and disconnection token
+     * @return a JsonResponse for errors, or a CompletableFuture of the JSON
+     *         document or ByteBuf of packed states, which fails with
+     *         PropagationCancelledException if the request is cancelled
+     */
+    public static Object handleBatch(
+            FullHttpRequest request,
+            Map<String, String> params,
+            DataCaching dataCaching,
+            PropagationExecutor propagationExecutor,
+            boolean binary,
+            ByteBufAllocator allocator,
+            Cancellation cancellation) {
+
+        long startTime = System.currentTimeMillis();
+
+        String ca = params.get("ca");
+        boolean caching = "1".equals(params.getOrDefault("cf", "0"));
+        int ttl;
+        try {
+            ttl = QualityControlInput.parseInteger("ct", params.getOrDefault("ct", "60"));
+            if (caching && isRemoteCache(ca)) {
+                dataCaching.checkServers(ca);
+            }
+        } catch (IllegalArgumentException e) {
+            return JsonResponse.error(e.getMessage(), 400);
+        }
+
+        // Read every item up front so malformed JSON is rejected as a whole
+        List<Map<String, String>> items = new ArrayList<>();
+        try (Reader reader = new InputStreamReader(
+                new ByteBufInputStream(request.content().duplicate()), StandardCharsets.UTF_8)) {
+            JsonStreamParser parser = new JsonStreamParser(reader);
+            while (parser.hasNext()) {
+                JsonElement element = parser.next();
+                if (element.isJsonArray()) {
+                    for (JsonElement item : element.getAsJsonArray()) {
+                        items.add(toParameters(item));
+                    }
+                } else {
+                    items.add(toParameters(element));
+                }
+                if (items.size() > MAX_BATCH_ITEMS) {
+                    return JsonResponse.error(
+                            "Batch too large: at most " + MAX_BATCH_ITEMS + " items per request", 413);
+                }
+            }
+        } catch (JsonParseException | IOException e) {
+            return JsonResponse.error("Invalid batch body: " + e.getMessage(), 400);
+        }
+
+        if (items.isEmpty()) {
+            return JsonResponse.error("Batch contains no items", 400);
+        }
+
+        CompletableFuture<Map<String, Object>>[] results = newResultArray(items.size());
+        try {
+            propagationExecutor.forEach(items.size(), index -> {
+                results[index] = propagateItem(index, items.get(index), caching, ca, ttl, dataCaching, binary,
+                        cancellation);
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return JsonResponse.error("Batch interrupted", 503);
+        }
+
+        // Items that joined a propagation running for another request complete with it
+        return CompletableFuture.allOf(results).thenApply(done -> {
+            // Once cancelled the remaining items fail at once; none of the results are sent
+            cancellation.check();
+            List<Map<String, Object>> resolved = new ArrayList<>(results.length);
+            for (CompletableFuture<Map<String, Object>> result : results) {
+                resolved.add(result.join());
+            }
+            return buildBatchResponse(resolved, caching, binary, allocator, startTime);
+        });
+    }
+
+    /**
+     * Builds the batch response from the item results, in input order.
+     */
+    private static Object buildBatchResponse(
+            List<Map<String, Object>> results,
+            boolean caching,
+            boolean binary,
+            ByteBufAllocator allocator,
+            long startTime) {
+
+        if (binary) {
+            ByteBuf packed = allocator.buffer(results.size() * PackedStateEncoder.RECORD_SIZE);
+            try {
+                for (Map<String, Object> result : results) {
+                    if ("success".equals(result.get("status"))) {
+                        @SuppressWarnings("unchecked")
+                        Map<String, String> finalState = (Map<String, String>) result.get("finalState");
+                        PackedStateEncoder.writeFinalState(packed, (Double) result.get("duration"), finalState);
+                    } else {
+                        PackedStateEncoder.writeFailed(packed);
+                    }
+                }
+            } catch (RuntimeException e) {
+                packed.release();
+                throw e;
+            }
+            return packed;
+        }
+
+        int failed = 0;
+        for (Map<String, Object> result : results) {
+            if (!"success".equals(result.get("status"))) {
+                failed++;
+            }
+        }
+
+        Map<String, Object> diagnostics = new HashMap<>();
+        diagnostics.put("items", results.size());
+        diagnostics.put("succeeded", results.size() - failed);
+        diagnostics.put("failed", failed);
+        diagnostics.put("totalTimeMs", System.currentTimeMillis() - startTime);
+        diagnostics.put("caching", caching);
+
+        return JsonResponseBuilder.buildBatchResponse(results, diagnostics);
+    }
+
+    /**
+     * Propagates a single batch item, turning any failure into a per-item error.
+     * For binary batches the raw final state and the t0 to tf duration are
+     * kept in the result for PackedStateEncoder. The result is pending while
+     * the item waits on an identical propagation running for another request,
+     * and the item is propagated again if that request is cancelled.
+     */
+    private static CompletableFuture<Map<String, Object>> propagateItem(
+            int index,
+            Map<String, String> item,
+            boolean caching,
+            String ca,
+            int ttl,
+            DataCaching dataCaching,
+            boolean binary,
+            Cancellation cancellation) {
+
+        PropagationRequest propagationRequest;
+        try {
+            propagationRequest = PropagationRequest.parse(item);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(itemError(index, 400, e.getMessage()));
+        }
+        propagationRequest.setCancellation(cancellation);
+        if (!PropagationCost.isAdmissible(propagationRequest.getEstimatedCost())) {
+            return CompletableFuture.completedFuture(itemError(index, 422, String.format(
+                    "Estimated cost %.3g exceeds the server limit of %.3g",
+                    propagationRequest.getEstimatedCost(), PropagationCost.getMaxCost())));
+        }
+
+        Map<String, Object> cachingInfo = new HashMap<>();
+        CompletableFuture<HashMap<String, String>> pending;
+        try {
+            pending = resolveFinalState(
+                    propagationRequest, caching, propagationRequest.getCacheKey(), ca, ttl,
+                    dataCaching, cachingInfo, new HashMap<>());
+        } catch (RuntimeException e) {
+            pending = new CompletableFuture<>();
+            pending.completeExceptionally(e);
+        }
+        return pending.handle((finalState, failure) -> {
+            if (failure == null) {
+                Map<String, String> aposteriori = new HashMap<>();
+                aposteriori.put("tf", item.get("tf"));
+                aposteriori.put("rf", finalState.get("rf"));
+                aposteriori.put("vf", finalState.get("vf"));
+
+                Map<String, Object> result = new HashMap<>();
+                result.put("index", index);
+                result.put("status", "success");
+                result.put("aposteriori", aposteriori);
+                if (binary) {
+                    result.put("finalState", finalState);
+                    result.put("duration", propagationRequest.getFinalEpoch().durationFrom(
+                            propagationRequest.getInitialEpoch()));
+                }
+                if (caching) {
+                    result.put("cacheHit", cachingInfo.get("hit"));
+                }
+                return CompletableFuture.completedFuture(result);
+            }
+            Throwable cause = unwrap(failure);
+            if (cause instanceof PropagationCancelledException) {
+                if (!cancellation.isCancelled()) {
+                    // The propagation joined was cancelled with the request that started it
+                    return propagateItem(index, item, caching, ca, ttl, dataCaching, binary, cancellation);
+                }
+                // The whole batch is answered 504, or not at all
+                return CompletableFuture.completedFuture(itemError(index, 504, cause.getMessage()));
+            }
+            if (cause instanceof IllegalArgumentException) {
+                return CompletableFuture.completedFuture(itemError(index, 400, cause.getMessage()));
+            }
+            logger.warn("Propagation failed for batch item {}: {}", index, cause.getMessage());
+            return CompletableFuture.completedFuture(
+                    itemError(index, 500, "Error during propagation: " + cause.getMessage()));
+        }).thenCompose(result -> result);
+    }
+
+    private static Map<String, Object> itemError(int index, int code, String message) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("index", index);
+        result.put("status", "error");
+        result.put("code", code);
+        result.put("message", message);
+        return result;
+    }
+
+    /**
+     * Converts one batch item to the same string parameters a GET request
+     * carries. Vectors may be given as JSON arrays or as "[x,y,z]" strings.
+     * Array elements that are not numbers are passed on as their JSON text,
+     * so PropagationRequest.parse rejects that item alone with a 400.
+     */
+    private static Map<String, String> toParameters(JsonElement element) {
+        Map<String, String> item = new HashMap<>();
+        if (!element.isJsonObject()) {
+            return item; // Reported as missing parameters for this item
+        }
+        for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+            JsonElement value = entry.getValue();
+            if (value.isJsonArray()) {
+                StringBuilder vector = new StringBuilder("[");
+                for (JsonElement component : value.getAsJsonArray()) {
+                    if (vector.length() > 1) {
+                        vector.append(',');
+                    }
+                    boolean number = component.isJsonPrimitive() && component.getAsJsonPrimitive().isNumber();
+                    String text = number ? component.getAsString() : component.toString();
+                    vector.append(text);
+                }
+                item.put(entry.getKey(), vector.append(']').toString());
+            } else if (value.isJsonPrimitive()) {
+                item.put(entry.getKey(), value.getAsString());
+            }
+        }
+        return item;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CompletableFuture<Map<String, Object>>[] newResultArray(int size) {
+        return (CompletableFuture<Map<String, Object>>[]) new CompletableFuture[size];
+    }
+
+    private static boolean isRemoteCache(String ca) {
+        return ca != null && !ca.trim().isEmpty();
+    }
+
+    /**
+     * Returns the final state for a request, from the in-process (L1) cache,
+     * from memcached (L2) when servers are given, or by propagating.
+     * Propagated results are stored in both tiers. Records "hit" and "tier"
+     * in cachingInfo when caching is enabled.
+     *
+     * @return the final state, still pending if the request joined an
+     *         identical propagation that is running
+     */
+    private static CompletableFuture<HashMap<String, String>> resolveFinalState(
+            PropagationRequest propagationRequest,
+            boolean caching,
+            String cacheKey,
+            String ca,
+            int ttl,
+            DataCaching dataCaching,
+            Map<String, Object> cachingInfo,
+            Map<String, Object> coalescingInfo) {
+
+        if (!caching) {
+            return propagate(propagationRequest, coalescingInfo);
+        }
+
+        boolean remote = isRemoteCache(ca);
+        String tier = "l1";
+        Object cachedContent = dataCaching.getLocal(cacheKey);
+        if (cachedContent == null && remote) {
+            tier = "l2";
+            cachedContent = dataCaching.get(ca, cacheKey);
+            if (cachedContent != null) {
+                // Promote so the next lookup stays in-process
+                dataCaching.putLocal(cacheKey, cachedContent, ttl);
+            }
+        }
+
+        if (cachedContent != null) {
+            cachingInfo.put("hit", true);
+            cachingInfo.put("tier", tier);
+            @SuppressWarnings("unchecked")
+            HashMap<String, String> finalState = (HashMap<String, String>) cachedContent;
+            return CompletableFuture.completedFuture(finalState);
+        }
+
+        cachingInfo.put("hit", false);
+        return propagate(propagationRequest, coalescingInfo).thenApply(finalState -> {
+            dataCaching.putLocal(cacheKey, finalState, ttl);
+            if (remote) {
+                dataCaching.set(ca, cacheKey, ttl, finalState);
+            }
+            return finalState;
+        });
+    }
+
+    /**
+     * Propagates the request, joining an identical propagation if one is
+     * already running, and records whether the result was shared.
+     */
+    private static CompletableFuture<HashMap<String, String>> propagate(
+            PropagationRequest propagationRequest,
+            Map<String, Object> coalescingInfo) {
+
+        return inFlightPropagations.propagate(propagationRequest.getCacheKey(),
+                () -> measured(() -> new Propagator(propagationRequest).propagate())).thenApply(outcome -> {
+            coalescingInfo.put("coalesced", outcome.isCoalesced());
+            coalescingInfo.put("inFlight", inFlightPropagations.getInFlightCount());
+            coalescingInfo.put("executedTotal", inFlightPropagations.getExecutedCount());
+            coalescingInfo.put("coalescedTotal", inFlightPropagations.getCoalescedCount());
+            return outcome.getFinalState();
+        });
+    }
+
+    /**
+     * Returns the exception a future failed with, without the
+     * CompletionException its dependent futures wrap it in.
+     */
+    static Throwable unwrap(Throwable failure) {
+        if (failure instanceof CompletionException && failure.getCause() != null) {
+            return failure.getCause();
+        }
+        return failure;
+    }
+
+    /**
+     * Runs a propagation and records its duration and integrator cost in
+     * Metrics, or that it was cancelled.
+     */
+    private static HashMap<String, String> measured(
+            Callable<HashMap<String, String>> propagation) throws Exception {
+        long start = System.nanoTime();
+        HashMap<String, String> finalState;
+        try {
+            finalState = propagation.call();
+        } catch (PropagationCancelledException e) {
+            Metrics.recordCancellation(e.getReason());
+            throw e;
         }
+        String evaluations = finalState.get("evaluations");
+        Metrics.recordPropagation(System.nanoTime() - start,
+                evaluations != null ? Integer.parseInt(evaluations) : 0);
+        return finalState;
     }
 
     /**
@@ -1,24 +1,60 @@
 package org.spaceflightdynamics.netty;
 
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Manages HTTP sessions in memory.
- * Thread-safe session storage with automatic cleanup of expired sessions.
+ *
+ * Sessions are only created for requests that use them, and the store is
+ * bounded: past session.maxSessions the least recently used session is
+ * evicted. Each session has one expiry check scheduled on a hashed timer
+ * wheel rather than a periodic scan of the whole store. When the check fires
+ * on a session that has been used since, it is rescheduled for the time
+ * remaining, so accesses never touch the timer.
+ *
+ * Configured via system properties:
+ *   session.maxSessions - maximum number of live sessions (default: 10000)
  */
 public class SessionManager {
-    private final Map<String, HttpSession> sessions;
-    private final ScheduledExecutorService cleanupExecutor;
+    private static final Logger logger = LoggerFactory.getLogger(SessionManager.class);
+
+    private final int maxSessions;
+    private final LinkedHashMap<String, HttpSession> sessions;
+    private final HashedWheelTimer expiryTimer;
+
+    private long created;
+    private long evicted;
+    private long expired;
 
     public SessionManager() {
-        this.sessions = new ConcurrentHashMap<>();
-        this.cleanupExecutor = Executors.newSingleThreadScheduledExecutor();
-        startCleanupTask();
+        this(Integer.getInteger("session.maxSessions", 10000));
+    }
+
+    public SessionManager(int maxSessions) {
+        this.maxSessions = Math.max(1, maxSessions);
+        this.sessions = new LinkedHashMap<String, HttpSession>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HttpSession> eldest) {
+                if (size() > SessionManager.this.maxSessions) {
+                    cancelExpiry(eldest.getValue());
+                    evicted++;
+                    return true;
+                }
+                return false;
+            }
+        };
+        // One second resolution is plenty for timeouts counted in minutes
+        this.expiryTimer = new HashedWheelTimer(
+                new DefaultThreadFactory("session-expiry", true), 1, TimeUnit.SECONDS, 512);
     }
 
     /**
@@ -27,8 +63,12 @@ public class SessionManager {
     public HttpSession createSession() {
         String sessionId = generateSessionId();
         HttpSession session = new HttpSession(sessionId);
-        sessions.put(sessionId, session);
-        System.out.println("Created new session: " + sessionId);
+        synchronized (this) {
+            sessions.put(sessionId, session);
+            created++;
+        }
+        scheduleExpiry(session, session.getMaxInactiveInterval() * 1000L);
+        logger.debug("Created session {}", sessionId);
         return session;
     }
 
@@ -39,13 +79,15 @@ public class SessionManager {
         if (sessionId == null) {
             return null;
         }
-        HttpSession session = sessions.get(sessionId);
-        if (session != null && session.isExpired()) {
-            sessions.remove(sessionId);
-            System.out.println("Removed expired session: " + sessionId);
-            return null;
+        synchronized (this) {
+            HttpSession session = sessions.get(sessionId);
+            if (session != null && session.isExpired()) {
+                remove(sessionId, session);
+                expired++;
+                return null;
+            }
+            return session;
         }
-        return session;
     }
 
     /**
@@ -65,62 +107,95 @@ public class SessionManager {
      */
     public void removeSession(String sessionId) {
         if (sessionId != null) {
-            sessions.remove(sessionId);
-            System.out.println("Removed session: " + sessionId);
+            synchronized (this) {
+                HttpSession session = sessions.get(sessionId);
+                if (session != null) {
+                    remove(sessionId, session);
+                }
+            }
+            logger.debug("Removed session {}", sessionId);
         }
     }
 
     /**
-     * Generates a unique session ID using UUID.
+     * Returns the current number of active sessions.
      */
-    private String generateSessionId() {
-        return UUID.randomUUID().toString().replace("-", "");
+    public synchronized int getActiveSessionCount() {
+        return sessions.size();
     }
 
     /**
-     * Starts a background task to clean up expired sessions every 60 seconds.
+     * Returns the maximum number of sessions kept.
      */
-    private void startCleanupTask() {
-        cleanupExecutor.scheduleAtFixedRate(() -> {
-            cleanupExpiredSessions();
-        }, 60, 60, TimeUnit.SECONDS);
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    public synchronized long getCreatedCount() {
+        return created;
+    }
+
+    public synchronized long getEvictedCount() {
+        return evicted;
+    }
+
+    public synchronized long getExpiredCount() {
+        return expired;
     }
 
     /**
-     * Removes all expired sessions from the session store.
+     * Stops the expiry timer.
      */
-    private void cleanupExpiredSessions() {
-        int removedCount = 0;
-        for (Map.Entry<String, HttpSession> entry : sessions.entrySet()) {
-            if (entry.getValue().isExpired()) {
-                sessions.remove(entry.getKey());
-                removedCount++;
-            }
-        }
-        if (removedCount > 0) {
-            System.out.println("Cleaned up " + removedCount + " expired session(s)");
-        }
+    public void shutdown() {
+        expiryTimer.stop();
     }
 
     /**
-     * Returns the current number of active sessions.
+     * Generates a unique session ID using UUID.
      */
-    public int getActiveSessionCount() {
-        return sessions.size();
+    private String generateSessionId() {
+        return UUID.randomUUID().toString().replace("-", "");
     }
 
-    /**
-     * Shuts down the cleanup task executor.
+    /*
+     * A session that never expires (max inactive interval <= 0) is only
+     * removed by eviction.  A shortened interval takes effect on access
+     * (isExpired) at once, and in memory when the pending check fires.
      */
-    public void shutdown() {
-        cleanupExecutor.shutdown();
-        try {
-            if (!cleanupExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
-                cleanupExecutor.shutdownNow();
+    private void scheduleExpiry(HttpSession session, long delayMillis) {
+        if (session.getMaxInactiveInterval() <= 0) {
+            return;
+        }
+        session.setExpiry(expiryTimer.newTimeout(timeout -> checkExpiry(session),
+                Math.max(delayMillis, 1), TimeUnit.MILLISECONDS));
+    }
+
+    private void checkExpiry(HttpSession session) {
+        long remaining = session.getLastAccessedTime() + session.getMaxInactiveInterval() * 1000L
+                - System.currentTimeMillis();
+        synchronized (this) {
+            // Evicted or removed in the meantime (containsKey does not count as an access)
+            if (!sessions.containsKey(session.getId())) {
+                return;
+            }
+            if (session.isExpired()) {
+                sessions.remove(session.getId());
+                expired++;
+                return;
             }
-        } catch (InterruptedException e) {
-            cleanupExecutor.shutdownNow();
-            Thread.currentThread().interrupt();
+        }
+        scheduleExpiry(session, remaining);
+    }
+
+    private void remove(String sessionId, HttpSession session) {
+        sessions.remove(sessionId);
+        cancelExpiry(session);
+    }
+
+    private static void cancelExpiry(HttpSession session) {
+        Timeout expiry = session.getExpiry();
+        if (expiry != null) {
+            expiry.cancel();
         }
     }
 }
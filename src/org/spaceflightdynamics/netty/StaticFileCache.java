@@ -0,0 +1,275 @@
+package org.spaceflightdynamics.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-memory cache of the static web resources, built once at start-up.
+ *
+ * Every file under the web root (META-INF and WEB-INF excepted) is read into
+ * a read-only direct buffer, with a strong ETag from the SHA-256 of its
+ * content and its modification time. Text resources that compress well also
+ * keep a gzip variant, compressed at the highest level once instead of per
+ * response. Responses send slices of these buffers, so serving a file neither
+ * touches the disk nor copies it onto the heap.
+ *
+ * Lookups are by request path, so a path that is not a cached file (".." or
+ * otherwise) can never reach the file system. Changes to the web root are
+ * picked up on restart.
+ *
+ * Configured via system properties:
+ *   static.root   - directory holding the web resources (default: WebContent)
+ *   static.maxAge - Cache-Control max-age in seconds (default: 300)
+ */
+public final class StaticFileCache {
+
+    private static final String[] COMPRESSIBLE = {"text/", "application/javascript", "application/json",
+            "image/svg+xml", "image/x-icon"};
+
+    private static final Logger logger = LoggerFactory.getLogger(StaticFileCache.class);
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final String cacheControl;
+    private long totalBytes;
+
+    public StaticFileCache() {
+        this(Paths.get(System.getProperty("static.root", "WebContent")),
+                Integer.getInteger("static.maxAge", 300));
+    }
+
+    public StaticFileCache(Path root, int maxAge) {
+        this.cacheControl = maxAge > 0 ? "public, max-age=" + maxAge : "no-cache";
+        if (!Files.isDirectory(root)) {
+            logger.warn("Static resource directory not found: {}", root.toAbsolutePath());
+            return;
+        }
+        try (Stream<Path> files = Files.walk(root)) {
+            files.filter(Files::isRegularFile).forEach(file -> {
+                String path = "/" + root.relativize(file).toString().replace('\\', '/');
+                if (!path.startsWith("/META-INF/") && !path.startsWith("/WEB-INF/")) {
+                    Entry entry = load(file);
+                    entries.put(path, entry);
+                    totalBytes += entry.content.capacity();
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            throw new IllegalStateException("Cannot load static resources from " + root, e);
+        }
+    }
+
+    /**
+     * Returns the cached file for a request path, or null.
+     */
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public String getCacheControl() {
+        return cacheControl;
+    }
+
+    private static Entry load(Path file) {
+        try {
+            byte[] content = Files.readAllBytes(file);
+            String contentType = contentType(file.getFileName().toString());
+            byte[] gzip = compressible(contentType) ? gzip(content) : null;
+            // Only worth a variant if it saves at least a tenth
+            if (gzip != null && gzip.length > content.length * 9L / 10) {
+                gzip = null;
+            }
+            return new Entry(contentType, content, gzip, Files.getLastModifiedTime(file).toMillis());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static String contentType(String path) {
+        if (path.endsWith(".html")) return "text/html; charset=UTF-8";
+        if (path.endsWith(".css")) return "text/css; charset=UTF-8";
+        if (path.endsWith(".js")) return "application/javascript; charset=UTF-8";
+        if (path.endsWith(".json")) return "application/json; charset=UTF-8";
+        if (path.endsWith(".png")) return "image/png";
+        if (path.endsWith(".jpg") || path.endsWith(".jpeg")) return "image/jpeg";
+        if (path.endsWith(".gif")) return "image/gif";
+        if (path.endsWith(".svg")) return "image/svg+xml";
+        if (path.endsWith(".ico")) return "image/x-icon";
+        return "text/plain; charset=UTF-8";
+    }
+
+    private static boolean compressible(String contentType) {
+        for (String prefix : COMPRESSIBLE) {
+            if (contentType.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            gzip.write(content);
+        }
+        return out.toByteArray();
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ByteBuf readOnlyDirect(byte[] bytes) {
+        ByteBuf buf = Unpooled.directBuffer(bytes.length, bytes.length).writeBytes(bytes);
+        return Unpooled.unreleasableBuffer(buf.asReadOnly());
+    }
+
+    /**
+     * One cached file. The ETag of the gzip variant differs from the
+     * identity one, as the representations differ byte for byte.
+     */
+    public static final class Entry {
+        private final String contentType;
+        private final ByteBuf content;
+        private final ByteBuf gzip;
+        private final String etag;
+        private final String gzipEtag;
+        private final long lastModified;
+        private final String lastModifiedHeader;
+
+        Entry(String contentType, byte[] content, byte[] gzip, long lastModified) {
+            String hash = sha256(content);
+            this.contentType = contentType;
+            this.content = readOnlyDirect(content);
+            this.gzip = gzip != null ? readOnlyDirect(gzip) : null;
+            this.etag = "\"" + hash + "\"";
+            this.gzipEtag = "\"" + hash + "-gzip\"";
+            // HTTP dates have a resolution of one second
+            this.lastModified = lastModified / 1000 * 1000;
+            this.lastModifiedHeader = DateFormatter.format(new Date(this.lastModified));
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getLastModified() {
+            return lastModifiedHeader;
+        }
+
+        public boolean hasGzip() {
+            return gzip != null;
+        }
+
+        /**
+         * Returns true if the client accepts gzip and a variant exists.
+         */
+        public boolean useGzip(HttpRequest request) {
+            return gzip != null && acceptsGzip(request.headers().get(HttpHeaderNames.ACCEPT_ENCODING));
+        }
+
+        public String getEtag(boolean gzip) {
+            return gzip ? gzipEtag : etag;
+        }
+
+        /**
+         * Returns a new slice of the content for one response. The buffers
+         * are unreleasable, so the response releasing it is harmless.
+         */
+        public ByteBuf getContent(boolean gzip) {
+            return (gzip ? this.gzip : content).duplicate();
+        }
+
+        /**
+         * Returns true if the client's copy is current: If-None-Match matches
+         * either variant, or, without If-None-Match, the file has not changed
+         * since If-Modified-Since.
+         */
+        public boolean isNotModified(HttpRequest request) {
+            String ifNoneMatch = request.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+            if (ifNoneMatch != null) {
+                for (String tag : ifNoneMatch.split(",")) {
+                    tag = tag.trim();
+                    // Weak comparison, as RFC 7232 requires for If-None-Match
+                    if (tag.startsWith("W/")) {
+                        tag = tag.substring(2);
+                    }
+                    if (tag.equals("*") || tag.equals(etag) || tag.equals(gzipEtag)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            String ifModifiedSince = request.headers().get(HttpHeaderNames.IF_MODIFIED_SINCE);
+            if (ifModifiedSince != null) {
+                Date since = DateFormatter.parseHttpDate(ifModifiedSince);
+                return since != null && lastModified <= since.getTime();
+            }
+            return false;
+        }
+
+        private static boolean acceptsGzip(String acceptEncoding) {
+            if (acceptEncoding == null) {
+                return false;
+            }
+            for (String coding : acceptEncoding.split(",")) {
+                String[] parts = coding.trim().split(";");
+                String name = parts[0].trim();
+                if (name.equalsIgnoreCase(HttpHeaderValues.GZIP.toString()) || name.equals("*")) {
+                    for (int i = 1; i < parts.length; i++) {
+                        String parameter = parts[i].trim();
+                        if (parameter.startsWith("q=")) {
+                            try {
+                                return Double.parseDouble(parameter.substring(2)) > 0;
+                            } catch (NumberFormatException e) {
+                                return false;
+                            }
+                        }
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
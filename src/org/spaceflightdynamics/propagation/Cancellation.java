@@ -0,0 +1,119 @@
+package org.spaceflightdynamics.propagation;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Cooperative cancellation of the propagations done for one request.
+ * A request is cancelled when its deadline passes or when its client
+ * disconnects.  Nothing is interrupted: the propagator checks the token
+ * before it starts and after every integration step, and throws
+ * PropagationCancelledException to abandon the work.</p>
+ *
+ * <p>The deadline counts from the moment the token is created, so time spent
+ * waiting in the compute queue uses it up as well.  A request can ask for a
+ * shorter deadline than the server's, never a longer one.</p>
+ *
+ * <p>Configured via system properties:</p>
+ * <pre>
+ *   compute.maxDeadline - longest deadline in seconds, and the default one, 0 for none (default: 300)
+ * </pre>
+ */
+public final class Cancellation {
+
+    private static final double MAX_DEADLINE =
+            Double.parseDouble(System.getProperty("compute.maxDeadline", "300"));
+
+    /**
+     * Token for work no client waits on: no deadline and never disconnected.
+     */
+    public static final Cancellation NONE = new Cancellation(0);
+
+    /**
+     * Why a request was cancelled.
+     */
+    public enum Reason {
+        DEADLINE,
+        DISCONNECTED
+    }
+
+    private final long start = System.nanoTime();
+    private final long timeoutNanos;
+    private volatile boolean disconnected;
+
+    private Cancellation(double timeoutSeconds) {
+        // Rounded up: a positive deadline under 1 ns must not become 0, which means none
+        this.timeoutNanos = timeoutSeconds > 0 ? Math.max(1, (long) Math.ceil(timeoutSeconds * 1e9)) : 0;
+    }
+
+    /**
+     * Creates the token for a request, starting its deadline now.
+     *
+     * @param deadline - seconds the client is prepared to wait, or NaN for
+     *                   the server's maximum; longer ones are shortened to it
+     */
+    public static Cancellation withDeadline(double deadline) {
+        if (Double.isNaN(deadline) || (MAX_DEADLINE > 0 && deadline > MAX_DEADLINE)) {
+            deadline = MAX_DEADLINE;
+        }
+        return new Cancellation(Math.max(deadline, 0));
+    }
+
+    /**
+     * Returns compute.maxDeadline in seconds, 0 or less when there is no limit.
+     */
+    public static double getMaxDeadline() {
+        return MAX_DEADLINE;
+    }
+
+    /**
+     * Cancels the request because its client has gone away.
+     */
+    public void disconnect() {
+        disconnected = true;
+    }
+
+    /**
+     * Returns why the request is cancelled, or null if it is not.
+     */
+    public Reason getReason() {
+        if (disconnected) {
+            return Reason.DISCONNECTED;
+        }
+        if (timeoutNanos > 0 && System.nanoTime() - start >= timeoutNanos) {
+            return Reason.DEADLINE;
+        }
+        return null;
+    }
+
+    public boolean isCancelled() {
+        return getReason() != null;
+    }
+
+    /**
+     * Throws PropagationCancelledException if the request is cancelled.
+     */
+    public void check() {
+        Reason reason = getReason();
+        if (reason != null) {
+            throw new PropagationCancelledException(reason, getTimeoutSeconds());
+        }
+    }
+
+    /**
+     * Returns the nanoseconds left before the deadline, Long.MAX_VALUE
+     * without one.
+     */
+    public long getRemainingNanos() {
+        if (timeoutNanos <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, timeoutNanos - (System.nanoTime() - start));
+    }
+
+    /**
+     * Returns the deadline in seconds, 0 without one.
+     */
+    public double getTimeoutSeconds() {
+        return timeoutNanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+}
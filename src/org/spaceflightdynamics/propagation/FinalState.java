@@ -0,0 +1,35 @@
+package org.spaceflightdynamics.propagation;
+
+import java.util.HashMap;
+
+import org.hipparchus.geometry.euclidean.threed.Vector3D;
+import org.orekit.utils.PVCoordinates;
+
+/**
+ * <p>The result of a propagation as returned by Propagator: the formatted
+ * values reported in JSON under the keys "rf", "vf", "tf" and "evaluations",
+ * plus the final position and velocity at full precision for the binary
+ * encoding.  Both are serialized together, so results read back from
+ * memcached keep their doubles as well.</p>
+ */
+public class FinalState extends HashMap<String,String> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final double[] state;
+
+    FinalState(PVCoordinates pv) {
+        super(8);
+        Vector3D r = pv.getPosition();
+        Vector3D v = pv.getVelocity();
+        this.state = new double[] {r.getX(), r.getY(), r.getZ(), v.getX(), v.getY(), v.getZ()};
+    }
+
+    /**
+     * Returns x, y, z, vx, vy and vz in meters and meters/second, EME2000.
+     * Results may be shared between requests: the array must not be modified.
+     */
+    public double[] getState() {
+        return state;
+    }
+}
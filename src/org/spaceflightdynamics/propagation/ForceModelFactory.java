@@ -0,0 +1,156 @@
+package org.spaceflightdynamics.propagation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.orekit.bodies.CelestialBody;
+import org.orekit.bodies.OneAxisEllipsoid;
+import org.orekit.errors.OrekitException;
+import org.orekit.forces.ForceModel;
+import org.orekit.forces.drag.DragForce;
+import org.orekit.forces.drag.IsotropicDrag;
+import org.orekit.forces.gravity.HolmesFeatherstoneAttractionModel;
+import org.orekit.forces.gravity.ThirdBodyAttraction;
+import org.orekit.forces.gravity.potential.GravityFields;
+import org.orekit.forces.radiation.IsotropicRadiationSingleCoefficient;
+import org.orekit.forces.radiation.SolarRadiationPressure;
+import org.orekit.frames.Frame;
+import org.orekit.models.earth.atmosphere.HarrisPriester;
+import org.orekit.utils.Constants;
+import org.orekit.utils.IERSConventions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>The force models a numerical propagation may add to the central
+ * attraction.  Everything expensive is built once and shared read-only by
+ * all propagations: the Earth shape and body frame, the Sun and Moon
+ * attractions, the atmosphere, and one spherical harmonics model per
+ * requested degree and order, whose coefficients are read from the data
+ * directory the first time that truncation is asked for.  Per request only
+ * the cheap spacecraft-specific pieces (drag and radiation pressure
+ * coefficients) are created, so setup cost does not grow with fidelity.</p>
+ *
+ * <p>Configured via system properties:
+ * <pre>
+ *   forces.maxDegree - highest degree/order a request may ask for (default: 70)
+ *   forces.preload   - degree/order built at start-up (default: 8, -1 for none)
+ * </pre></p>
+ *
+ * <p>The gravity field is read from potential files (ICGEM, SHM, EGM or GRGS
+ * format) in the data directory.  If none are found "gravity" requests are
+ * rejected; the other force models remain available.</p>
+ */
+public class ForceModelFactory {
+
+    private static final Logger logger = LoggerFactory.getLogger(ForceModelFactory.class);
+
+    public static final int MAX_DEGREE = Integer.getInteger("forces.maxDegree", 70);
+
+    private static final int PRELOAD_DEGREE = Integer.getInteger("forces.preload", 8);
+
+    private final GravityFields gravityFields;
+    private final Frame itrf;
+    private final OneAxisEllipsoid earthShape;
+    private final CelestialBody sun;
+    private final ThirdBodyAttraction sunAttraction;
+    private final ThirdBodyAttraction moonAttraction;
+    private final HarrisPriester atmosphere;
+
+    private final ConcurrentHashMap<Integer, HolmesFeatherstoneAttractionModel> gravityModels =
+            new ConcurrentHashMap<>();
+
+    private volatile String gravityUnavailable;
+
+    ForceModelFactory(OrekitContext context) {
+        this.gravityFields = context.getDataContext().getGravityFields();
+        this.itrf = context.getDataContext().getFrames().getITRF(IERSConventions.IERS_2010, true);
+        this.earthShape = new OneAxisEllipsoid(
+                Constants.WGS84_EARTH_EQUATORIAL_RADIUS,
+                Constants.WGS84_EARTH_FLATTENING,
+                itrf);
+        this.sun = context.getDataContext().getCelestialBodies().getSun();
+        this.sunAttraction = new ThirdBodyAttraction(sun);
+        this.moonAttraction = new ThirdBodyAttraction(
+                context.getDataContext().getCelestialBodies().getMoon());
+        this.atmosphere = new HarrisPriester(sun, earthShape);
+
+        if (PRELOAD_DEGREE >= 0) {
+            try {
+                getGravityModel(Math.min(PRELOAD_DEGREE, MAX_DEGREE),
+                                Math.min(PRELOAD_DEGREE, MAX_DEGREE));
+            } catch (IllegalArgumentException e) {
+                // Nothing could be read; don't rescan the data directory per request
+                gravityUnavailable = e.getMessage();
+                logger.warn(gravityUnavailable);
+            }
+        }
+    }
+
+    /**
+     * Returns the force models selected by the request, in addition to the
+     * central attraction the numerical propagator always includes.
+     *
+     * @throws IllegalArgumentException if a selected model cannot be built,
+     *         e.g. the gravity field is not available
+     */
+    public List<ForceModel> getForceModels(PropagationRequest request) {
+        List<ForceModel> models = new ArrayList<>();
+        if (request.hasForce(PropagationRequest.GRAVITY)) {
+            models.add(getGravityModel(request.getDegree(), request.getOrder()));
+        }
+        if (request.hasForce(PropagationRequest.SUN)) {
+            models.add(sunAttraction);
+        }
+        if (request.hasForce(PropagationRequest.MOON)) {
+            models.add(moonAttraction);
+        }
+        if (request.hasForce(PropagationRequest.DRAG)) {
+            models.add(new DragForce(atmosphere,
+                    new IsotropicDrag(request.getArea(), request.getDragCoefficient())));
+        }
+        if (request.hasForce(PropagationRequest.SRP)) {
+            models.add(new SolarRadiationPressure(sun, earthShape,
+                    new IsotropicRadiationSingleCoefficient(request.getArea(),
+                            request.getReflectionCoefficient())));
+        }
+        return models;
+    }
+
+    /**
+     * Returns the shared spherical harmonics model for a degree and order,
+     * reading the coefficients on first use.
+     *
+     * @throws IllegalArgumentException if no gravity field is available or it
+     *         does not go to the requested degree
+     */
+    public HolmesFeatherstoneAttractionModel getGravityModel(int degree, int order) {
+        String unavailable = gravityUnavailable;
+        if (unavailable != null) {
+            throw new IllegalArgumentException(unavailable);
+        }
+        try {
+            return gravityModels.computeIfAbsent(degree * (MAX_DEGREE + 1) + order,
+                    k -> new HolmesFeatherstoneAttractionModel(itrf,
+                            gravityFields.getNormalizedProvider(degree, order)));
+        } catch (OrekitException e) {
+            throw new IllegalArgumentException("Gravity field data of degree " + degree
+                    + " and order " + order + " not available: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns true if spherical harmonics can be requested.
+     */
+    public boolean isGravityAvailable() {
+        return gravityUnavailable == null;
+    }
+
+    /**
+     * Returns the number of spherical harmonics models built so far.
+     */
+    public int getGravityModelCount() {
+        return gravityModels.size();
+    }
+}
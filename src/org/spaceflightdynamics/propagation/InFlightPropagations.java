@@ -0,0 +1,118 @@
+package org.spaceflightdynamics.propagation;
+
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Single-flight execution of identical propagations.  The first caller
+ * for a given canonical key runs the propagation; callers arriving with the
+ * same key while it is still running get the same future and share its
+ * result instead of integrating the same orbit again.</p>
+ *
+ * <p>Entries only live while a propagation is running; completed results are
+ * the business of the result cache, not of this class.</p>
+ *
+ * <p>Joining callers do not wait: whatever they chain on the future runs on
+ * the thread that completes it, once the propagation is done.  Giving up on
+ * a caller's own deadline is the caller's business.  The propagation runs
+ * under the token of the caller that started it, so if that caller is
+ * cancelled the others get its PropagationCancelledException and should
+ * start again rather than fail with it.</p>
+ */
+public class InFlightPropagations {
+
+    private final ConcurrentHashMap<String, CompletableFuture<HashMap<String,String>>> inFlight =
+            new ConcurrentHashMap<>();
+
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Runs the propagation for key on the calling thread, or joins the one
+     * already running.
+     *
+     * @param key         - canonical propagation key
+     * @param propagation - computes the final state when no identical
+     *                      propagation is in flight
+     * @return the final state and whether it was shared with another request,
+     *         already completed unless an identical propagation was running;
+     *         completed exceptionally with whatever the propagation threw
+     */
+    public CompletableFuture<Outcome> propagate(String key, Callable<HashMap<String,String>> propagation) {
+
+        CompletableFuture<HashMap<String,String>> future = new CompletableFuture<>();
+        CompletableFuture<HashMap<String,String>> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            coalesced.incrementAndGet();
+            return running.thenApply(finalState -> new Outcome(finalState, true));
+        }
+
+        executed.incrementAndGet();
+        HashMap<String,String> result;
+        try {
+            result = propagation.call();
+        } catch (Exception | Error e) {
+            // Removed first so that callers starting again do not join the failure
+            inFlight.remove(key, future);
+            future.completeExceptionally(e);
+            CompletableFuture<Outcome> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        inFlight.remove(key, future);
+        future.complete(result);
+        return CompletableFuture.completedFuture(new Outcome(result, false));
+    }
+
+    /**
+     * Returns the number of distinct propagations currently running.
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Returns the number of propagations actually executed.
+     */
+    public long getExecutedCount() {
+        return executed.get();
+    }
+
+    /**
+     * Returns the number of requests served by joining a running propagation.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Result of a possibly shared propagation.
+     */
+    public static class Outcome {
+        private final HashMap<String,String> finalState;
+        private final boolean coalesced;
+
+        Outcome(HashMap<String,String> finalState, boolean coalesced) {
+            this.finalState = finalState;
+            this.coalesced = coalesced;
+        }
+
+        /**
+         * Returns the final state.  It may be shared with other requests and
+         * must not be modified.
+         */
+        public HashMap<String,String> getFinalState() {
+            return finalState;
+        }
+
+        /**
+         * Returns true if this request joined another request's propagation.
+         */
+        public boolean isCoalesced() {
+            return coalesced;
+        }
+    }
+}
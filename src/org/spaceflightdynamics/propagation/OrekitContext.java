@@ -0,0 +1,172 @@
+package org.spaceflightdynamics.propagation;
+
+import java.io.File;
+
+import org.orekit.bodies.CelestialBody;
+import org.orekit.data.DataContext;
+import org.orekit.data.DirectoryCrawler;
+import org.orekit.data.LazyLoadedDataContext;
+import org.orekit.errors.OrekitException;
+import org.orekit.frames.Frame;
+import org.orekit.time.AbsoluteDate;
+import org.orekit.time.TimeScale;
+import org.orekit.utils.IERSConventions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>The Orekit data shared by every propagation.  Built once, normally at
+ * server start-up, from the data directory (UTC-TAI history, Earth
+ * orientation parameters, the DE-406 ephemerides and, when present, the
+ * gravity field), and read-only afterwards, so it can be used from any
+ * thread without per-request setup.</p>
+ *
+ * <p>All data is loaded eagerly when the context is created, so the first
+ * request after a deploy does not pay for lazy loading.  The context is also
+ * installed as Orekit's default data context, so that library code which
+ * still consults the default finds the same, already loaded data.</p>
+ */
+public class OrekitContext {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrekitContext.class);
+
+    /*
+     * Data path - defaults to 'data' directory relative to working directory
+     * Can be overridden via system property: orekit.data.path
+     */
+    private static final String DEFAULT_DATA_PATH =
+            System.getProperty("orekit.data.path",
+                System.getProperty("user.dir") + "/data");
+
+    private static volatile OrekitContext instance;
+
+    private final String dataPath;
+    private final DataContext dataContext;
+    private final TimeScale utc;
+    private final Frame eme2000;
+    private final AbsoluteDate j2000Epoch;
+    private final CelestialBody earth;
+    private final double earthMu;
+    private final ForceModelFactory forceModels;
+    private final long loadTimeMillis;
+
+    private OrekitContext(String dataPath) {
+        long start = System.currentTimeMillis();
+
+        this.dataPath = dataPath;
+
+        LazyLoadedDataContext context = new LazyLoadedDataContext();
+        context.getDataProvidersManager().addProvider(new DirectoryCrawler(new File(dataPath)));
+        this.dataContext = context;
+
+        /*
+         * Touch everything a propagation needs so the files are read now
+         * rather than on the first request.
+         */
+        this.utc = context.getTimeScales().getUTC();
+        this.j2000Epoch = context.getTimeScales().getJ2000Epoch();
+        this.eme2000 = context.getFrames().getEME2000();
+        this.earth = context.getCelestialBodies().getEarth();
+        this.earthMu = earth.getGM();
+
+        try {
+            context.getFrames().getEOPHistory(IERSConventions.IERS_2010, true);
+        } catch (OrekitException e) {
+            logger.warn("Earth orientation parameters not loaded: {}", e.getMessage());
+        }
+
+        try {
+            context.getCelestialBodies().getSun().getPVCoordinates(j2000Epoch, eme2000);
+            context.getCelestialBodies().getMoon().getPVCoordinates(j2000Epoch, eme2000);
+        } catch (OrekitException e) {
+            logger.warn("Planetary ephemerides not loaded: {}", e.getMessage());
+        }
+
+        DataContext.setDefault(context);
+
+        this.forceModels = new ForceModelFactory(this);
+
+        this.loadTimeMillis = System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Builds the shared context from the given data directory, replacing any
+     * previous one.  Call once at start-up, before serving requests.
+     */
+    public static synchronized OrekitContext initialize(String dataPath) {
+        instance = new OrekitContext(dataPath);
+        return instance;
+    }
+
+    /**
+     * Returns the shared context, building it from orekit.data.path (or
+     * ./data) if initialize has not been called.
+     */
+    public static OrekitContext getInstance() {
+        OrekitContext context = instance;
+        if (context == null) {
+            synchronized (OrekitContext.class) {
+                if (instance == null) {
+                    instance = new OrekitContext(DEFAULT_DATA_PATH);
+                }
+                context = instance;
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Returns the data path used when none is given explicitly.
+     */
+    public static String getDefaultDataPath() {
+        return DEFAULT_DATA_PATH;
+    }
+
+    public String getDataPath() {
+        return dataPath;
+    }
+
+    public DataContext getDataContext() {
+        return dataContext;
+    }
+
+    public TimeScale getUTC() {
+        return utc;
+    }
+
+    /**
+     * Returns the Earth-centered J2000 frame all inputs and outputs use.
+     */
+    public Frame getEME2000() {
+        return eme2000;
+    }
+
+    public AbsoluteDate getJ2000Epoch() {
+        return j2000Epoch;
+    }
+
+    public CelestialBody getEarth() {
+        return earth;
+    }
+
+    /**
+     * Returns the Earth gravitational parameter (m^3/s^2).
+     */
+    public double getEarthMu() {
+        return earthMu;
+    }
+
+    /**
+     * Returns the shared force models for numerical propagations.
+     */
+    public ForceModelFactory getForceModels() {
+        return forceModels;
+    }
+
+    /**
+     * Returns how long loading the data took, in milliseconds.
+     */
+    public long getLoadTimeMillis() {
+        return loadTimeMillis;
+    }
+}
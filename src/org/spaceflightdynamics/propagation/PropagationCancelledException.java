@@ -0,0 +1,32 @@
+package org.spaceflightdynamics.propagation;
+
+/**
+ * Thrown from within a propagation to abandon it once its request has been
+ * cancelled.  Unchecked so that it passes through the Orekit step handlers
+ * it is thrown from.  It carries no stack trace: cancellations are routine
+ * and come in bursts when clients give up.
+ */
+public class PropagationCancelledException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Cancellation.Reason reason;
+
+    public PropagationCancelledException(Cancellation.Reason reason, double timeoutSeconds) {
+        super(reason == Cancellation.Reason.DEADLINE
+                ? String.format("Deadline of %.3g s exceeded", timeoutSeconds)
+                : "Client disconnected", null, false, false);
+        this.reason = reason;
+    }
+
+    public Cancellation.Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * Returns true if the deadline passed, false if the client went away.
+     */
+    public boolean isDeadline() {
+        return reason == Cancellation.Reason.DEADLINE;
+    }
+}
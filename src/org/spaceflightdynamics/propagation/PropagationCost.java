@@ -0,0 +1,286 @@
+package org.spaceflightdynamics.propagation;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.hipparchus.geometry.euclidean.threed.Vector3D;
+
+import org.orekit.time.TimeScale;
+
+import org.spaceflightdynamics.utils.QualityControlInput;
+
+/**
+ * <p>Estimates what a propagation will cost before it runs, so that the
+ * compute pool can run short jobs first and refuse ones that are too large.</p>
+ *
+ * <p>Costs are in units of one point-mass acceleration evaluation.  A
+ * numerical propagation costs its predicted derivative evaluations times the
+ * cost of one evaluation with the selected force models; an analytical one
+ * a small constant.  Ephemeris samples add the cost of interpolating and
+ * encoding each one.  The step count of the adaptive integrators is
+ * predicted from the number of orbits covered and the tolerance, bounded by
+ * the step limits.  The estimate is meant to rank requests and catch the
+ * ones that are orders of magnitude too large, not to predict run times.</p>
+ *
+ * <p>Configured via system properties:</p>
+ * <pre>
+ *   compute.maxCost     - largest estimated cost admitted, 0 for no limit (default: 1e9)
+ *   compute.defaultCost - cost requests whose parameters do not parse are scheduled at (default: 1e5)
+ * </pre>
+ */
+public final class PropagationCost {
+
+    private static final double MAX_COST =
+            Double.parseDouble(System.getProperty("compute.maxCost", "1e9"));
+    private static final double DEFAULT_COST =
+            Double.parseDouble(System.getProperty("compute.defaultCost", "1e5"));
+
+    /*
+     * Per-evaluation costs relative to the point-mass attraction.  Gravity
+     * grows with the number of (degree, order) terms in the recursion; the
+     * third bodies, drag and srp pay for ephemeris lookups, frame transforms
+     * and the atmosphere or eclipse models.
+     */
+    private static final double GRAVITY_TERM_COST = 0.05;
+    private static final double THIRD_BODY_COST = 2;
+    private static final double DRAG_COST = 4;
+    private static final double SRP_COST = 3;
+
+    private static final double ANALYTICAL_COST = 20;
+    private static final double SAMPLE_COST = 2;
+
+    /*
+     * Steps per orbit the adaptive integrators take at a 1 m position
+     * tolerance, for a low Earth orbit.
+     */
+    private static final double DP54_STEPS_PER_ORBIT = 300;
+    private static final double DP853_STEPS_PER_ORBIT = 60;
+
+    private PropagationCost() {
+    }
+
+    /**
+     * Returns the estimated cost of a request.
+     */
+    public static double estimate(PropagationRequest request) {
+        if (!request.isNumerical()) {
+            return ANALYTICAL_COST + samples(request) * SAMPLE_COST;
+        }
+        return predictEvaluations(request) * evaluationCost(request) + samples(request) * SAMPLE_COST;
+    }
+
+    /**
+     * Returns the estimated cost of a request from its raw parameters
+     * without building a PropagationRequest.  Only what the cost depends on
+     * is read: t0 and tf, r0 and v0 for the adaptive integrators, the
+     * fidelity, integrator settings, force names and gravity degree and
+     * order, and "step", or "epochs", which is counted rather than parsed.
+     * Nothing else is validated.  Requests whose parameters are missing or
+     * do not parse cost compute.defaultCost; they fail when they run, which
+     * is soon but not first.  For valid parameters this is the same as
+     * estimate of the parsed request.
+     */
+    public static double estimate(Map<String, String> params) {
+        String t0 = params.get("t0");
+        String tf = params.get("tf");
+        if (t0 == null || tf == null || params.get("r0") == null || params.get("v0") == null) {
+            return DEFAULT_COST;
+        }
+        try {
+            TimeScale utc = OrekitContext.getInstance().getUTC();
+            double span = Math.abs(QualityControlInput.parseEpoch("tf", tf, utc)
+                    .durationFrom(QualityControlInput.parseEpoch("t0", t0, utc)));
+
+            double samples = 0;
+            String step = params.get("step");
+            String epochs = params.get("epochs");
+            if (step != null) {
+                samples = Math.floor(span / positive(params, "step", 0)) + 1;
+            } else if (epochs != null) {
+                samples = count(epochs);
+            }
+
+            String fidelity = params.getOrDefault("fidelity", PropagationRequest.DEFAULT_FIDELITY);
+            if (!PropagationRequest.HIGH.equals(fidelity.trim().toLowerCase())) {
+                return ANALYTICAL_COST + samples * SAMPLE_COST;
+            }
+
+            String integrator = params.getOrDefault("integrator", PropagationRequest.DEFAULT_INTEGRATOR)
+                    .trim().toLowerCase();
+            double evaluations;
+            if (PropagationRequest.RK4.equals(integrator)) {
+                evaluations = fixedStepEvaluations(span,
+                        positive(params, "stepSize", PropagationRequest.DEFAULT_STEP_SIZE));
+            } else {
+                evaluations = adaptiveEvaluations(integrator, span,
+                        positive(params, "minStep", PropagationRequest.DEFAULT_MIN_STEP),
+                        positive(params, "maxStep", PropagationRequest.DEFAULT_MAX_STEP),
+                        positive(params, "tolerance", PropagationRequest.DEFAULT_POSITION_TOLERANCE),
+                        QualityControlInput.parseVector("r0", params.get("r0")),
+                        QualityControlInput.parseVector("v0", params.get("v0")));
+            }
+
+            Set<String> forces = new HashSet<>();
+            String names = params.get("forces");
+            if (names != null) {
+                for (String name : names.split(",")) {
+                    forces.add(name.trim().toLowerCase());
+                }
+            }
+            int degree = PropagationRequest.DEFAULT_DEGREE;
+            if (params.get("degree") != null) {
+                degree = QualityControlInput.parseInteger("degree", params.get("degree"));
+            }
+            int order = degree;
+            if (params.get("order") != null) {
+                order = QualityControlInput.parseInteger("order", params.get("order"));
+            }
+
+            return evaluations * evaluationCost(forces, degree, order) + samples * SAMPLE_COST;
+        } catch (IllegalArgumentException e) {
+            return DEFAULT_COST;
+        }
+    }
+
+    /**
+     * Returns the cost of a request that took the given number of
+     * derivative evaluations, in the units of estimate.
+     */
+    public static double actual(PropagationRequest request, int evaluations) {
+        if (!request.isNumerical()) {
+            return ANALYTICAL_COST + samples(request) * SAMPLE_COST;
+        }
+        return evaluations * evaluationCost(request) + samples(request) * SAMPLE_COST;
+    }
+
+    /**
+     * Returns false if the estimated cost is above compute.maxCost.
+     */
+    public static boolean isAdmissible(double cost) {
+        return MAX_COST <= 0 || cost <= MAX_COST;
+    }
+
+    /**
+     * Returns compute.maxCost, 0 or less when there is no limit.
+     */
+    public static double getMaxCost() {
+        return MAX_COST;
+    }
+
+    /**
+     * Predicts the derivative evaluations of a numerical propagation.
+     */
+    public static double predictEvaluations(PropagationRequest request) {
+        double span = Math.abs(request.getFinalEpoch().durationFrom(request.getInitialEpoch()));
+        if (!request.isAdaptive()) {
+            return fixedStepEvaluations(span, request.getStepSize());
+        }
+        return adaptiveEvaluations(request.getIntegrator(), span, request.getMinStep(), request.getMaxStep(),
+                request.getPositionTolerance(), request.getPosition(), request.getVelocity());
+    }
+
+    /**
+     * Returns the cost of one derivative evaluation with the request's force models.
+     */
+    public static double evaluationCost(PropagationRequest request) {
+        return evaluationCost(request.getForces(), request.getDegree(), request.getOrder());
+    }
+
+    private static double evaluationCost(Collection<String> forces, int degree, int order) {
+        double cost = 1;
+        if (forces.contains(PropagationRequest.GRAVITY)) {
+            cost += GRAVITY_TERM_COST * (degree + 1) * (order + 1);
+        }
+        if (forces.contains(PropagationRequest.SUN)) {
+            cost += THIRD_BODY_COST;
+        }
+        if (forces.contains(PropagationRequest.MOON)) {
+            cost += THIRD_BODY_COST;
+        }
+        if (forces.contains(PropagationRequest.DRAG)) {
+            cost += DRAG_COST;
+        }
+        if (forces.contains(PropagationRequest.SRP)) {
+            cost += SRP_COST;
+        }
+        return cost;
+    }
+
+    /*
+     * rk4 evaluates the derivatives four times per step.
+     */
+    private static double fixedStepEvaluations(double span, double stepSize) {
+        return 4 * Math.ceil(span / stepSize);
+    }
+
+    private static double adaptiveEvaluations(String integrator, double span, double minStep, double maxStep,
+                                              double tolerance, Vector3D position, Vector3D velocity) {
+        if (PropagationRequest.DP54.equals(integrator)) {
+            // Seven stages, the last reused as the first of the next step
+            return 6 * adaptiveSteps(span, minStep, maxStep, tolerance, position, velocity,
+                    DP54_STEPS_PER_ORBIT, 5);
+        }
+        return 12 * adaptiveSteps(span, minStep, maxStep, tolerance, position, velocity,
+                DP853_STEPS_PER_ORBIT, 8);
+    }
+
+    /*
+     * Step size control makes the step count per orbit scale with the
+     * tolerance to the power -1/order.  Unbound orbits are only limited by
+     * maxStep.
+     */
+    private static double adaptiveSteps(double span, double minStep, double maxStep, double tolerance,
+                                        Vector3D position, Vector3D velocity,
+                                        double stepsPerOrbit, int order) {
+        double fewest = Math.ceil(span / maxStep);
+        double most = Math.ceil(span / minStep);
+        double period = period(position, velocity);
+        if (Double.isNaN(period)) {
+            return fewest;
+        }
+        double predicted = span / period * stepsPerOrbit * Math.pow(tolerance, -1.0 / order);
+        return Math.max(fewest, Math.min(most, Math.ceil(predicted)));
+    }
+
+    /*
+     * Two-body period from the vis-viva equation, NaN for unbound orbits.
+     */
+    private static double period(Vector3D position, Vector3D velocity) {
+        double mu = OrekitContext.getInstance().getEarthMu();
+        double a = 1 / (2 / position.getNorm() - velocity.getNormSq() / mu);
+        return a > 0 ? 2 * Math.PI * Math.sqrt(a * a * a / mu) : Double.NaN;
+    }
+
+    /*
+     * A positive number parameter, or its default when absent.
+     */
+    private static double positive(Map<String, String> params, String name, double defaultValue) {
+        String value = params.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        double number = QualityControlInput.parseNumber(name, value);
+        if (!(number > 0)) {
+            throw new IllegalArgumentException(name + " must be a positive number: " + value);
+        }
+        return number;
+    }
+
+    private static int count(String epochs) {
+        int count = 1;
+        for (int i = epochs.indexOf(','); i >= 0; i = epochs.indexOf(',', i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static double samples(PropagationRequest request) {
+        if (request.getOutputStep() > 0) {
+            double span = Math.abs(request.getFinalEpoch().durationFrom(request.getInitialEpoch()));
+            return Math.floor(span / request.getOutputStep()) + 1;
+        }
+        return request.getOutputEpochs().size();
+    }
+}
@@ -0,0 +1,617 @@
+package org.spaceflightdynamics.propagation;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.hipparchus.geometry.euclidean.threed.Vector3D;
+
+import org.orekit.time.AbsoluteDate;
+
+import org.spaceflightdynamics.utils.QualityControlInput;
+
+/**
+ * <p>Parsed, typed propagation inputs.  Holds the initial state, the final
+ * epoch and the integrator settings as values rather than the raw strings
+ * supplied in the URL, so that two spellings of the same request compare
+ * equal.</p>
+ *
+ * <p>The canonical cache key is derived from these values: the epochs as
+ * offsets in seconds from J2000 (TAI based, so independent of the input
+ * spelling), the vector components as exact IEEE-754 doubles, and the
+ * integrator settings.  The result is hashed with SHA-256 into a fixed
+ * length key that is always valid for memcached.</p>
+ */
+public class PropagationRequest {
+
+    /*
+     * Bump when the meaning of a cached value changes, so old entries are
+     * never served for the new format.
+     */
+    private static final String CACHE_KEY_PREFIX = "sfdaas:v4:";
+
+    /*
+     * Upper bound on the number of ephemeris samples one request may ask for.
+     */
+    private static final int MAX_EPHEMERIS_SAMPLES =
+            Integer.getInteger("ephemeris.maxSamples", 100000);
+
+    /*
+     * Supported integrators.  rk4 is the classical fixed-step Runge-Kutta;
+     * dp54 and dp853 are the adaptive Dormand-Prince 5(4) and 8(5,3).
+     */
+    public static final String RK4 = "rk4";
+    public static final String DP54 = "dp54";
+    public static final String DP853 = "dp853";
+
+    /*
+     * Fidelity levels.  low and medium use closed-form analytical models
+     * (Keplerian two-body and Eckstein-Hechler, which adds the zonal
+     * harmonics J2 to J6) evaluated in constant time whatever the span;
+     * high integrates the equations of motion numerically.
+     */
+    public static final String LOW = "low";
+    public static final String MEDIUM = "medium";
+    public static final String HIGH = "high";
+
+    /*
+     * Force models that may be added to a numerical propagation on top of
+     * the central (point mass) attraction.
+     */
+    public static final String GRAVITY = "gravity";
+    public static final String SUN = "sun";
+    public static final String MOON = "moon";
+    public static final String DRAG = "drag";
+    public static final String SRP = "srp";
+
+    private static final List<String> FORCE_MODELS =
+            Arrays.asList(GRAVITY, SUN, MOON, DRAG, SRP);
+
+    /*
+     * Server defaults, overridable with system properties.  The ones the
+     * cost depends on are shared with PropagationCost.
+     */
+    static final String DEFAULT_FIDELITY =
+            System.getProperty("propagation.fidelity", HIGH);
+    static final String DEFAULT_INTEGRATOR =
+            System.getProperty("propagation.integrator", DP853);
+    static final double DEFAULT_STEP_SIZE =
+            Double.parseDouble(System.getProperty("propagation.stepSize", "60"));
+    static final double DEFAULT_POSITION_TOLERANCE =
+            Double.parseDouble(System.getProperty("propagation.tolerance", "1.0"));
+    static final double DEFAULT_MIN_STEP =
+            Double.parseDouble(System.getProperty("propagation.minStep", "0.001"));
+    static final double DEFAULT_MAX_STEP =
+            Double.parseDouble(System.getProperty("propagation.maxStep", "300"));
+    static final int DEFAULT_DEGREE = Integer.getInteger("forces.degree", 8);
+    private static final double DEFAULT_MASS =
+            Double.parseDouble(System.getProperty("forces.mass", "1000"));
+    private static final double DEFAULT_AREA =
+            Double.parseDouble(System.getProperty("forces.area", "10"));
+    private static final double DEFAULT_CD =
+            Double.parseDouble(System.getProperty("forces.cd", "2.2"));
+    private static final double DEFAULT_CR =
+            Double.parseDouble(System.getProperty("forces.cr", "1.5"));
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    });
+
+    private final AbsoluteDate initialEpoch;
+    private final AbsoluteDate finalEpoch;
+    private final Vector3D position;
+    private final Vector3D velocity;
+    private final String finalEpochText;
+
+    /*
+     * fidelity          - propagation model: low, medium or high
+     * integrator        - integrator name: rk4, dp54 or dp853
+     * stepSize          - fixed step size for rk4 (seconds)
+     * positionTolerance - position error (meters) the adaptive integrators
+     *                     aim for, converted to absolute and relative
+     *                     tolerances on the state
+     * minStep, maxStep  - adaptive step bounds (seconds)
+     */
+    private String fidelity = DEFAULT_FIDELITY;
+    private String integrator = DEFAULT_INTEGRATOR;
+    private double stepSize = DEFAULT_STEP_SIZE;
+    private double positionTolerance = DEFAULT_POSITION_TOLERANCE;
+    private double minStep = DEFAULT_MIN_STEP;
+    private double maxStep = DEFAULT_MAX_STEP;
+
+    /*
+     * forces        - additional force models, sorted by name
+     * degree, order - spherical harmonics truncation for "gravity"
+     * mass          - spacecraft mass (kg)
+     * area          - cross section (m^2) for "drag" and "srp"
+     * cd, cr        - drag and radiation pressure coefficients
+     */
+    private List<String> forces = Collections.emptyList();
+    private int degree = DEFAULT_DEGREE;
+    private int order = DEFAULT_DEGREE;
+    private double mass = DEFAULT_MASS;
+    private double area = DEFAULT_AREA;
+    private double dragCoefficient = DEFAULT_CD;
+    private double reflectionCoefficient = DEFAULT_CR;
+
+    /*
+     * outputStep   - ephemeris sampling interval (seconds), 0 if not requested
+     * outputEpochs - explicit ephemeris epochs, empty if not requested
+     */
+    private double outputStep;
+    private List<AbsoluteDate> outputEpochs = Collections.emptyList();
+
+    private String cacheKey;
+    private double estimatedCost = Double.NaN;
+
+    // Not an input: never part of the cache key
+    private Cancellation cancellation = Cancellation.NONE;
+
+    public PropagationRequest(AbsoluteDate initialEpoch, Vector3D position, Vector3D velocity,
+                              AbsoluteDate finalEpoch, String finalEpochText) {
+        this.initialEpoch = initialEpoch;
+        this.position = position;
+        this.velocity = velocity;
+        this.finalEpoch = finalEpoch;
+        this.finalEpochText = finalEpochText;
+    }
+
+    /**
+     * Parses the "t0", "r0", "v0" and "tf" entries of a parameter map, the
+     * optional model entries ("fidelity", the integrator settings, "forces"
+     * and the spacecraft properties), and the optional ephemeris entries
+     * "step" (sampling interval in seconds) or "epochs" (comma separated
+     * epochs between t0 and tf).
+     *
+     * @throws IllegalArgumentException if a value is missing or malformed
+     */
+    public static PropagationRequest parse(Map<String, String> parms) {
+        AbsoluteDate t0 = parseEpoch("t0", parms.get("t0"));
+        AbsoluteDate tf = parseEpoch("tf", parms.get("tf"));
+        Vector3D r0 = parseVector("r0", parms.get("r0"));
+        Vector3D v0 = parseVector("v0", parms.get("v0"));
+        PropagationRequest request = new PropagationRequest(t0, r0, v0, tf, parms.get("tf"));
+
+        String fidelity = parms.get("fidelity");
+        if (fidelity != null) {
+            request.setFidelity(fidelity);
+        }
+        String integrator = parms.get("integrator");
+        if (integrator != null) {
+            request.setIntegrator(integrator);
+        }
+        if (parms.get("stepSize") != null) {
+            request.stepSize = parsePositive("stepSize", parms.get("stepSize"));
+        }
+        if (parms.get("tolerance") != null) {
+            request.positionTolerance = parsePositive("tolerance", parms.get("tolerance"));
+        }
+        if (parms.get("minStep") != null) {
+            request.minStep = parsePositive("minStep", parms.get("minStep"));
+        }
+        if (parms.get("maxStep") != null) {
+            request.maxStep = parsePositive("maxStep", parms.get("maxStep"));
+        }
+        if (request.minStep > request.maxStep) {
+            throw new IllegalArgumentException("minStep must not exceed maxStep");
+        }
+
+        String forces = parms.get("forces");
+        if (forces != null) {
+            request.setForces(parseForces(forces));
+        }
+        if (!request.forces.isEmpty() && !request.isNumerical()) {
+            throw new IllegalArgumentException("Force models require fidelity=" + HIGH);
+        }
+        if (parms.get("degree") != null) {
+            request.degree = parseDegree("degree", parms.get("degree"));
+            request.order = request.degree;
+        }
+        if (parms.get("order") != null) {
+            request.order = parseDegree("order", parms.get("order"));
+        }
+        if (request.order > request.degree) {
+            throw new IllegalArgumentException("order must not exceed degree");
+        }
+        if (parms.get("mass") != null) {
+            request.mass = parsePositive("mass", parms.get("mass"));
+        }
+        if (parms.get("area") != null) {
+            request.area = parsePositive("area", parms.get("area"));
+        }
+        if (parms.get("cd") != null) {
+            request.dragCoefficient = parsePositive("cd", parms.get("cd"));
+        }
+        if (parms.get("cr") != null) {
+            request.reflectionCoefficient = parsePositive("cr", parms.get("cr"));
+        }
+
+        String step = parms.get("step");
+        String epochs = parms.get("epochs");
+        if (step != null && epochs != null) {
+            throw new IllegalArgumentException("Use either step or epochs for an ephemeris, not both");
+        }
+        if (step != null) {
+            request.setOutputStep(parseStep(step, Math.abs(tf.durationFrom(t0))));
+        }
+        if (epochs != null) {
+            request.setOutputEpochs(parseEpochList(epochs, t0, tf));
+        }
+        // Costed once here; the raw-parameter estimate used for scheduling agrees with it
+        request.estimatedCost = PropagationCost.estimate(request);
+        return request;
+    }
+
+    private static double parsePositive(String name, String value) {
+        double number = QualityControlInput.parseNumber(name, value);
+        if (!(number > 0)) {
+            throw new IllegalArgumentException(name + " must be a positive number: " + value);
+        }
+        return number;
+    }
+
+    /*
+     * Comma separated force model names; "none" (or nothing) selects two-body motion.
+     */
+    private static List<String> parseForces(String value) {
+        TreeSet<String> names = new TreeSet<>();
+        for (String name : value.split(",")) {
+            name = name.trim().toLowerCase();
+            if (name.isEmpty() || "none".equals(name)) {
+                continue;
+            }
+            if (!FORCE_MODELS.contains(name)) {
+                throw new IllegalArgumentException("Unknown force model: " + name
+                        + " (expected any of " + String.join(", ", FORCE_MODELS) + ")");
+            }
+            names.add(name);
+        }
+        return new ArrayList<>(names);
+    }
+
+    private static int parseDegree(String name, String value) {
+        int number = QualityControlInput.parseInteger(name, value);
+        if (number < 0 || number > ForceModelFactory.MAX_DEGREE) {
+            throw new IllegalArgumentException(name + " must be between 0 and "
+                    + ForceModelFactory.MAX_DEGREE + ": " + value);
+        }
+        return number;
+    }
+
+    /*
+     * The sampling interval must be positive and yield a bounded number of samples.
+     */
+    private static double parseStep(String value, double span) {
+        double step = QualityControlInput.parseNumber("step", value);
+        if (!(step > 0)) {
+            throw new IllegalArgumentException("Ephemeris step must be a positive number of seconds: " + value);
+        }
+        if (span / step + 2 > MAX_EPHEMERIS_SAMPLES) {
+            throw new IllegalArgumentException("Ephemeris step " + value + " yields more than "
+                    + MAX_EPHEMERIS_SAMPLES + " samples");
+        }
+        return step;
+    }
+
+    /*
+     * Every requested epoch must lie between t0 and tf, whichever direction
+     * the propagation runs in.  The list is scanned in place, without
+     * splitting it into substrings.
+     */
+    private static List<AbsoluteDate> parseEpochList(String value, AbsoluteDate t0, AbsoluteDate tf) {
+        List<AbsoluteDate> epochs = new ArrayList<>();
+        double span = tf.durationFrom(t0);
+        for (int start = 0; start <= value.length(); ) {
+            int end = value.indexOf(',', start);
+            if (end < 0) {
+                end = value.length();
+            }
+            AbsoluteDate epoch = QualityControlInput.parseEpoch("epochs", value, start, end,
+                    OrekitContext.getInstance().getUTC());
+            double offset = epoch.durationFrom(t0);
+            if (offset * span < 0 || Math.abs(offset) > Math.abs(span)) {
+                throw new IllegalArgumentException("Ephemeris epoch outside [t0, tf]: "
+                        + value.substring(start, end).trim());
+            }
+            start = end + 1;
+            epochs.add(epoch);
+            if (epochs.size() > MAX_EPHEMERIS_SAMPLES) {
+                throw new IllegalArgumentException("More than " + MAX_EPHEMERIS_SAMPLES + " ephemeris epochs");
+            }
+        }
+        return epochs;
+    }
+
+    /**
+     * Parses an epoch "YYYY-MM-DDTHH:MM:SS.SSS" (or day of year
+     * "YYYY-DDDTHH:MM:SS.SSS"), in UTC unless it carries a zone.
+     * See QualityControlInput for the accepted forms.
+     */
+    public static AbsoluteDate parseEpoch(String name, String value) {
+        return QualityControlInput.parseEpoch(name, value, OrekitContext.getInstance().getUTC());
+    }
+
+    /**
+     * Parses a vector of the form "[x, y, z]"; the components may be
+     * integers or decimals.
+     */
+    public static Vector3D parseVector(String name, String value) {
+        return QualityControlInput.parseVector(name, value);
+    }
+
+    public AbsoluteDate getInitialEpoch() {
+        return initialEpoch;
+    }
+
+    public AbsoluteDate getFinalEpoch() {
+        return finalEpoch;
+    }
+
+    public Vector3D getPosition() {
+        return position;
+    }
+
+    public Vector3D getVelocity() {
+        return velocity;
+    }
+
+    /**
+     * Returns the final epoch exactly as the caller spelled it.
+     */
+    public String getFinalEpochText() {
+        return finalEpochText;
+    }
+
+    /**
+     * Returns the ephemeris sampling interval in seconds, or 0 if none was requested.
+     */
+    public double getOutputStep() {
+        return outputStep;
+    }
+
+    public void setOutputStep(double outputStep) {
+        this.outputStep = outputStep;
+        this.cacheKey = null;
+        this.estimatedCost = Double.NaN;
+    }
+
+    /**
+     * Returns the explicitly requested ephemeris epochs, possibly empty.
+     */
+    public List<AbsoluteDate> getOutputEpochs() {
+        return outputEpochs;
+    }
+
+    public void setOutputEpochs(List<AbsoluteDate> outputEpochs) {
+        this.outputEpochs = outputEpochs;
+        this.cacheKey = null;
+        this.estimatedCost = Double.NaN;
+    }
+
+    /**
+     * Returns true if a sampled trajectory was requested rather than only the final state.
+     */
+    public boolean isEphemeris() {
+        return outputStep > 0 || !outputEpochs.isEmpty();
+    }
+
+    public String getFidelity() {
+        return fidelity;
+    }
+
+    public void setFidelity(String fidelity) {
+        String name = fidelity.trim().toLowerCase();
+        if (!LOW.equals(name) && !MEDIUM.equals(name) && !HIGH.equals(name)) {
+            throw new IllegalArgumentException("Unknown fidelity: " + fidelity
+                    + " (expected " + LOW + ", " + MEDIUM + " or " + HIGH + ")");
+        }
+        this.fidelity = name;
+        this.cacheKey = null;
+        this.estimatedCost = Double.NaN;
+    }
+
+    /**
+     * Returns true if the request is propagated by numerical integration
+     * rather than by an analytical model.
+     */
+    public boolean isNumerical() {
+        return HIGH.equals(fidelity);
+    }
+
+    /**
+     * Returns the additional force models, sorted by name, possibly empty.
+     */
+    public List<String> getForces() {
+        return forces;
+    }
+
+    public void setForces(List<String> forces) {
+        this.forces = Collections.unmodifiableList(forces);
+        this.cacheKey = null;
+        this.estimatedCost = Double.NaN;
+    }
+
+    public boolean hasForce(String name) {
+        return forces.contains(name);
+    }
+
+    public int getDegree() {
+        return degree;
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    public double getMass() {
+        return mass;
+    }
+
+    public double getArea() {
+        return area;
+    }
+
+    public double getDragCoefficient() {
+        return dragCoefficient;
+    }
+
+    public double getReflectionCoefficient() {
+        return reflectionCoefficient;
+    }
+
+    public String getIntegrator() {
+        return integrator;
+    }
+
+    public void setIntegrator(String integrator) {
+        String name = integrator.trim().toLowerCase();
+        if (!RK4.equals(name) && !DP54.equals(name) && !DP853.equals(name)) {
+            throw new IllegalArgumentException("Unknown integrator: " + integrator
+                    + " (expected " + RK4 + ", " + DP54 + " or " + DP853 + ")");
+        }
+        this.integrator = name;
+        this.cacheKey = null;
+        this.estimatedCost = Double.NaN;
+    }
+
+    public double getStepSize() {
+        return stepSize;
+    }
+
+    public double getPositionTolerance() {
+        return positionTolerance;
+    }
+
+    public double getMinStep() {
+        return minStep;
+    }
+
+    public double getMaxStep() {
+        return maxStep;
+    }
+
+    /**
+     * Returns true if the selected integrator controls its step size from an error estimate.
+     */
+    public boolean isAdaptive() {
+        return !RK4.equals(integrator);
+    }
+
+    /**
+     * Returns the estimated compute cost of these inputs; see PropagationCost.
+     */
+    public double getEstimatedCost() {
+        if (Double.isNaN(estimatedCost)) {
+            estimatedCost = PropagationCost.estimate(this);
+        }
+        return estimatedCost;
+    }
+
+    /**
+     * Returns the token the propagation of these inputs checks to abandon
+     * its work, Cancellation.NONE unless one was set.
+     */
+    public Cancellation getCancellation() {
+        return cancellation;
+    }
+
+    public void setCancellation(Cancellation cancellation) {
+        this.cancellation = cancellation != null ? cancellation : Cancellation.NONE;
+    }
+
+    /**
+     * Returns the canonical, session independent cache key for these inputs.
+     * The key is a fixed length ASCII string without spaces or control
+     * characters, as required by memcached.
+     */
+    public String getCacheKey() {
+        if (cacheKey == null) {
+            cacheKey = CACHE_KEY_PREFIX + toHex(SHA256.get().digest(canonicalBytes()));
+        }
+        return cacheKey;
+    }
+
+    /*
+     * Serializes every input that affects the propagation result.  The epoch
+     * offsets are measured from the same J2000 reference, so equal instants
+     * give equal bits whatever their text form.
+     */
+    private byte[] canonicalBytes() {
+        AbsoluteDate j2000 = OrekitContext.getInstance().getJ2000Epoch();
+        // Integrator and fidelity names are disjoint, so one name identifies the model
+        String model = isNumerical() ? integrator : fidelity;
+        byte[] modelName = model.getBytes(StandardCharsets.US_ASCII);
+        byte[] forceNames = String.join(",", forces).getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.allocate((18 + outputEpochs.size()) * Double.BYTES
+                + modelName.length + forceNames.length + 2);
+        buffer.putDouble(initialEpoch.durationFrom(j2000));
+        buffer.putDouble(finalEpoch.durationFrom(j2000));
+        buffer.putDouble(canonical(position.getX()));
+        buffer.putDouble(canonical(position.getY()));
+        buffer.putDouble(canonical(position.getZ()));
+        buffer.putDouble(canonical(velocity.getX()));
+        buffer.putDouble(canonical(velocity.getY()));
+        buffer.putDouble(canonical(velocity.getZ()));
+        // Only the settings the selected model actually uses; analytical models have none
+        if (isNumerical() && isAdaptive()) {
+            buffer.putDouble(positionTolerance);
+            buffer.putDouble(minStep);
+            buffer.putDouble(maxStep);
+        } else if (isNumerical()) {
+            buffer.putDouble(stepSize);
+        }
+        buffer.put(modelName);
+        buffer.put((byte) 0);
+        buffer.put(forceNames);
+        buffer.put((byte) 0);
+        if (hasForce(GRAVITY)) {
+            buffer.putDouble(degree);
+            buffer.putDouble(order);
+        }
+        // Mass only matters through the area to mass ratio of drag and srp
+        if (hasForce(DRAG) || hasForce(SRP)) {
+            buffer.putDouble(mass);
+            buffer.putDouble(area);
+        }
+        if (hasForce(DRAG)) {
+            buffer.putDouble(dragCoefficient);
+        }
+        if (hasForce(SRP)) {
+            buffer.putDouble(reflectionCoefficient);
+        }
+        buffer.putDouble(outputStep);
+        for (AbsoluteDate epoch : outputEpochs) {
+            buffer.putDouble(epoch.durationFrom(j2000));
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /*
+     * Folds -0.0 onto 0.0 so that "[-0.0, ...]" and "[0.0, ...]" share a key.
+     */
+    private static double canonical(double value) {
+        return value == 0.0 ? 0.0 : value;
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0x0f];
+            chars[2 * i + 1] = HEX[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+}
@@ -1,33 +1,47 @@
 package org.spaceflightdynamics.propagation;
 
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.function.Consumer;
 
 import org.hipparchus.geometry.euclidean.threed.Vector3D;
+import org.hipparchus.ode.AbstractIntegrator;
 import org.hipparchus.ode.nonstiff.ClassicalRungeKuttaIntegrator;
+import org.hipparchus.ode.nonstiff.DormandPrince54Integrator;
+import org.hipparchus.ode.nonstiff.DormandPrince853Integrator;
 
-import org.orekit.bodies.CelestialBodyFactory;
-import org.orekit.data.DataProvidersManager;
+import org.orekit.attitudes.FrameAlignedProvider;
 import org.orekit.errors.OrekitException;
-import org.orekit.frames.FramesFactory;
+import org.orekit.forces.ForceModel;
+import org.orekit.frames.Frame;
 import org.orekit.orbits.CartesianOrbit;
 import org.orekit.orbits.Orbit;
+import org.orekit.orbits.OrbitType;
+import org.orekit.orbits.PositionAngleType;
+import org.orekit.propagation.BoundedPropagator;
+import org.orekit.propagation.EphemerisGenerator;
 import org.orekit.propagation.numerical.NumericalPropagator;
 import org.orekit.propagation.SpacecraftState;
+import org.orekit.propagation.ToleranceProvider;
+import org.orekit.propagation.analytical.EcksteinHechlerPropagator;
+import org.orekit.propagation.analytical.KeplerianPropagator;
 import org.orekit.time.AbsoluteDate;
-import org.orekit.time.TimeScalesFactory;
+import org.orekit.utils.Constants;
 import org.orekit.utils.PVCoordinates;
+import org.orekit.utils.TimeStampedPVCoordinates;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /***
- * <p>Class to perform propagation using a numerical propagator.  The initial 
+ * <p>Class to perform propagation using a numerical propagator, or one of
+ * the analytical models for lower fidelity requests.  The initial 
  * state is specified using strings.  There are two possible constructors: one 
  * taking the initial state as a HashMap&lsaquo;String,String&rsaquo; which has 
  * keys <em>r0</em>, <em>v0</em>, <em>t0</em>, and <em>tf</em>,and another 
  * taking the initial state as strings in the order r0, v0, t0, tf.  In both 
  * constructors, <em>r0</em> and <em>v0</em> have the String format 
  * "[xxx.xxx, yyy.yyy, zzz.zzz]".  <em>t0</em> has the format 
- * "YYYY-MM-DDTHH:MM:SS.SSS". Right now, I don't support the timezone suffix.
+ * "YYYY-MM-DDTHH:MM:SS.SSS", optionally with a timezone suffix such as
+ * "+0400" (see QualityControlInput).
  * r0 and v0 must be specified in meters in the Earth-centered J2000 frame.</p>
  *    
  * <p>Example of how to use this class.  In a webapp you don't call main, 
@@ -48,51 +62,23 @@ import org.orekit.utils.PVCoordinates;
  */
 public class Propagator {
 
+    private static final Logger logger = LoggerFactory.getLogger(Propagator.class);
+
     /*
-     * stepSize            - integrator step size
-     * parms               - HashMap of integration parameters
-     * numericalPropagator - Orekit propagator.
-     */
-    private double stepSize = 60.;
-    private HashMap<String,String> parms;    
-    private NumericalPropagator numericalPropagator;
-    
-    /*
-     * Regular expression for matching the string vector format: 
-     * "[1.23, 4.56, 7.789]".  Using the format "1.23,4.56,7.89" might be nicer
-     * and is easier to parse (you just split it on commas).
-     */    
-    /* Should change regex using samples from 
-     * http://www.regular-expressions.info/floatingpoint.html
+     * request             - parsed propagation inputs
+     * integrator          - numerical integrator, null for analytical models
+     * orbitPropagator     - Orekit propagator: numerical or analytical.
      */
-//    private static String VECTOR_REGEX = 
-//        "\\[\\s*([0-9\\.\\+\\-]+)\\s*,\\s*([0-9\\.\\+\\-]+)\\s*,\\s*([0-9\\.\\+\\-]+)\\s*\\]";
-    private static String NUMBER_ANY_REGEX =
-    		"[-+]?[0-9]*\\.?[0-9]+(?:[eEdD][-+]?[0-9]+)?";
-
-    private static String NUMBER_FLOATINGPOINT_REGEX =
-    		"[-+]?[0-9]*\\.[0-9]+(?:[eEdD][-+]?[0-9]+)?";
-
-    private static String NUMBER_INTEGER_REGEX =
-    		"[+-]?\\d+";
-
-    private static String VECTOR_REGEX = 
-            "\\[\\s*("+
-            NUMBER_FLOATINGPOINT_REGEX +
-            ")\\s*,\\s*+("+
-            NUMBER_FLOATINGPOINT_REGEX +
-            ")\\s*,\\s*(" +
-            NUMBER_FLOATINGPOINT_REGEX +
-            ")\\s*\\]";
- 
+    private PropagationRequest request;
+    private AbstractIntegrator integrator;
+    private org.orekit.propagation.Propagator orbitPropagator;
     
     /*
-     * Data path - defaults to 'data' directory relative to working directory
-     * Can be overridden via system property: orekit.data.path
+     * State representation the adaptive integrators run in, and for which
+     * their tolerances are computed.
      */
-    private static String UTCTAI_PATH =
-    		System.getProperty("orekit.data.path",
-    			System.getProperty("user.dir") + "/data");
+    private static final OrbitType TOLERANCE_ORBIT_TYPE = OrbitType.EQUINOCTIAL;
+    private static final PositionAngleType TOLERANCE_ANGLE_TYPE = PositionAngleType.TRUE;
     
     /**
      * Empty (default) constructor.
@@ -145,172 +131,325 @@ public class Propagator {
     }
 
     /**
-     * Initialize the Orekit components by creating the numerical integrator,
-     * creating initial orbit state and assigning it to the propagator.
+     * Create a propagator from already parsed inputs.
+     * 
+     * @param request - parsed initial state, final epoch and settings
+     */
+    public Propagator(PropagationRequest request) {
+        initialize(request);
+    }
+
+    /**
+     * Parse the propagation parameters and initialize the Orekit components.
      * @param hm - HashMap of propagation parameters
+     * @throws IllegalArgumentException if a parameter is missing or malformed
      */
     public void initialize(HashMap<String,String> hm) {
+
+        initialize(PropagationRequest.parse(hm));
+
+    }
+
+    /**
+     * Initialize the Orekit components by creating the numerical integrator,
+     * creating initial orbit state and assigning it to the propagator.
+     * @param request - parsed propagation inputs
+     * @throws IllegalArgumentException if Orekit rejects the initial state
+     */
+    public void initialize(PropagationRequest request) {
         
-        parms = hm;
-        
-        AbsoluteDate epoch = AbsoluteDate.J2000_EPOCH;
+        this.request = request;
         
         /*
-         * This is how you tell Orekit where the UTC-TAI data is.  You need to
-         * change this path to the regular-data directory on your machine, and
-         * figure out how to reference it as a resource on Google App Engine!
+         * The Orekit data (UTC-TAI, frames, Earth GM) is loaded once and
+         * shared by every propagation; see OrekitContext.
          */
-        System.setProperty(DataProvidersManager.OREKIT_DATA_PATH, UTCTAI_PATH); 
+        OrekitContext context = OrekitContext.getInstance();
+
+        AbsoluteDate epoch = request.getInitialEpoch();
+        Vector3D v3r = request.getPosition();
+        Vector3D v3v = request.getVelocity();
+
+        logger.debug("t0={} r0={} v0={}", epoch, v3r, v3v);
 
         /*
-         * Extract the epoch parameter ("t0") and convert it to an Orekit 
-         * AbsoluteDate.  These exceptions should really be thrown up the chain
-         * to the calling application, so the web user gets feedback.  Handling
-         * the exceptions here only prints them to stdout.
+         * Now create an Orbit from the initialState.  A state Orekit rejects
+         * is bad input, thrown back to the web app as such (400).
          */
+
+        Orbit orbit;
+        
         try {
             
-            epoch = new AbsoluteDate(parms.get("t0"), 
-                            TimeScalesFactory.getUTC());
-            
-        } catch (IllegalArgumentException e) {
-            
-            e.printStackTrace();            
-            return;
+            orbit = new CartesianOrbit(
+                            new PVCoordinates(v3r,v3v), 
+                            context.getEME2000(), 
+                            epoch, 
+                            context.getEarthMu());
             
         } catch (OrekitException e) {
 
-            e.printStackTrace();            
-            return;
+            throw new IllegalArgumentException(
+                    "Invalid initial state: " + e.getMessage(), e);
+            
         }
         
-        System.out.println("t0=" + epoch);
-        
         /*
-         * Extract the position from the r0 string and convert it to an apache 
-         * commons Vector3D.
-         */        
-        Pattern pattern = Pattern.compile(VECTOR_REGEX);
-        
-        Matcher matcher = pattern.matcher(parms.get("r0"));
-
-        if (!matcher.find()) {
-            System.out.println("Couldn't match the position parameter");
-            System.out.println(parms.get("r0"));
+         * Low and medium fidelity requests are served by a closed-form
+         * analytical model: no integration, constant cost whatever the span.
+         */
+        if (!request.isNumerical()) {
+            orbitPropagator = createAnalyticalPropagator(orbit, context);
+            return;
         }
-                
-        Vector3D v3r = new Vector3D(Double.parseDouble(matcher.group(1)), 
-                                    Double.parseDouble(matcher.group(2)), 
-                                    Double.parseDouble(matcher.group(3)));
-        
-        System.out.println(v3r);
         
         /*
-         * Extract the velocity from the v0 strings and convert it to an apache 
-         * commons Vector3D.
-         */        
-        matcher = matcher.reset(parms.get("v0"));
-
-        if (!matcher.find()) {
-            System.out.println("Couldn't match the velocity parameter");
+         * We're finally ready to start the Orekit stuff.  Create an Orekit
+         * NumericalPropagator using the integrator selected in the request.
+         * The adaptive integrators need the orbit to scale their tolerances.
+         */
+        integrator = createIntegrator(orbit);
+        
+        NumericalPropagator numericalPropagator = new NumericalPropagator(
+                                integrator,
+                                new FrameAlignedProvider(context.getEME2000()));
+        
+        if (request.isAdaptive()) {
+            numericalPropagator.setOrbitType(TOLERANCE_ORBIT_TYPE);
+            numericalPropagator.setPositionAngleType(TOLERANCE_ANGLE_TYPE);
         }
-                
-        Vector3D v3v = new Vector3D(Double.parseDouble(matcher.group(1)), 
-                                    Double.parseDouble(matcher.group(2)), 
-                                    Double.parseDouble(matcher.group(3)));
- 
-        System.out.println(v3v);
-
+        
         /*
-         * We're finally ready to start the Orekit stuff.  First create an 
-         * Orekit NumericalPropagator using the apache-commons Runge-Kutta
-         * integrator.
+         * Add the requested perturbations.  The models are shared, already
+         * loaded instances; see ForceModelFactory.
          */
-        numericalPropagator = new NumericalPropagator(
-                                new ClassicalRungeKuttaIntegrator(stepSize));
-          
+        for (ForceModel forceModel : context.getForceModels().getForceModels(request)) {
+            numericalPropagator.addForceModel(forceModel);
+        }
+        
         /*
-         * Now create an Orbit from the initialState.  Again, the exceptions
-         * should be thrown back to the web app.
+         * Create a SpacecraftState using the orbit and assign the state as the
+         * initial state for the orbit propagator.  The numerical propagator is
+         * now ready to propagate.
          */
+        SpacecraftState state = new SpacecraftState(orbit, request.getMass());
+        numericalPropagator.setInitialState(state);
+        
+        orbitPropagator = numericalPropagator;
 
-        Orbit orbit = null;
+    }
+    
+    /**
+     * Create the analytical propagator for the request's fidelity: Keplerian
+     * two-body motion for low, Eckstein-Hechler (J2 to J6 zonal harmonics of
+     * the EIGEN-5C field) for medium.
+     * @param orbit - initial orbit
+     * @param context - shared Orekit data
+     * @throws IllegalArgumentException if the model cannot handle the orbit;
+     *         Eckstein-Hechler is limited to near-circular orbits
+     */
+    private org.orekit.propagation.Propagator createAnalyticalPropagator(
+            Orbit orbit, OrekitContext context) {
+        
+        FrameAlignedProvider attitude = new FrameAlignedProvider(context.getEME2000());
+        
+        if (PropagationRequest.LOW.equals(request.getFidelity())) {
+            return new KeplerianPropagator(orbit, attitude);
+        }
         
         try {
             
-            orbit = new CartesianOrbit(
-                            new PVCoordinates(v3r,v3v), 
-                            FramesFactory.getEME2000(), 
-                            epoch, 
-                            CelestialBodyFactory.getEarth().getGM());
-            
-        } catch (IllegalArgumentException e) {
-
-            e.printStackTrace();
+            return new EcksteinHechlerPropagator(orbit, attitude,
+                            Constants.EIGEN5C_EARTH_EQUATORIAL_RADIUS,
+                            Constants.EIGEN5C_EARTH_MU,
+                            Constants.EIGEN5C_EARTH_C20,
+                            Constants.EIGEN5C_EARTH_C30,
+                            Constants.EIGEN5C_EARTH_C40,
+                            Constants.EIGEN5C_EARTH_C50,
+                            Constants.EIGEN5C_EARTH_C60);
             
         } catch (OrekitException e) {
-
-            e.printStackTrace();
+            
+            throw new IllegalArgumentException(
+                    "Orbit not supported at medium fidelity: " + e.getMessage(), e);
             
         }
         
-        /*
-         * Create a SpacecraftState using the orbit and assign the state as the
-         * initial state for the orbit propagator.  The numerical propagator is
-         * now ready to propagate.
-         */
-        SpacecraftState state = new SpacecraftState(orbit);
-        numericalPropagator.setInitialState(state);
-
+    }
+    
+    /**
+     * Create the integrator named in the request.  rk4 uses the fixed step
+     * size; dp54 and dp853 derive absolute and relative tolerances for each
+     * state component from the requested position tolerance.
+     * @param orbit - initial orbit, used to scale the tolerances
+     */
+    private AbstractIntegrator createIntegrator(Orbit orbit) {
+        
+        if (!request.isAdaptive()) {
+            return new ClassicalRungeKuttaIntegrator(request.getStepSize());
+        }
+        
+        double[][] tolerances = ToleranceProvider
+                .getDefaultToleranceProvider(request.getPositionTolerance())
+                .getTolerances(orbit, TOLERANCE_ORBIT_TYPE, TOLERANCE_ANGLE_TYPE);
+        
+        if (PropagationRequest.DP54.equals(request.getIntegrator())) {
+            return new DormandPrince54Integrator(request.getMinStep(), 
+                            request.getMaxStep(), tolerances[0], tolerances[1]);
+        }
+        
+        return new DormandPrince853Integrator(request.getMinStep(), 
+                        request.getMaxStep(), tolerances[0], tolerances[1]);
+        
+    }
+    
+    /**
+     * Return the number of derivative evaluations the integrator has made so
+     * far; after propagate() this is the cost of the propagation.  Always 0
+     * for the analytical models.
+     */
+    public int getEvaluations() {
+        return integrator == null ? 0 : integrator.getEvaluations();
     }
     
     /**
      * Propagate the state using Orekit.  The propagation proceeds from the 
      * parameters it was initialized with and propagates to the time tf.
-     * @return HashMap<String,String> containing the keys "rf", "vf", "tf"
+     * @return FinalState containing the keys "rf", "vf", "tf" and
+     *         "evaluations", and the state at full precision
+     * @throws PropagationCancelledException once the request's cancellation
+     *         token is cancelled
+     * @throws OrekitException if the propagation fails; the web app reports
+     *         it as a server error
      */
-    public HashMap<String,String> propagate() {
+    public FinalState propagate() {
         
-        SpacecraftState final_state = null;
+        watchCancellation();
         
-        try {
+        SpacecraftState final_state = orbitPropagator.propagate(
+                        request.getFinalEpoch());
 
-            final_state = numericalPropagator.propagate(
-                            new AbsoluteDate(parms.get("tf"),
-                            TimeScalesFactory.getUTC()));
+        return(toFinalHash(final_state));
+        
+    }
+    
+    /**
+     * Propagate the state to tf in a single integration pass while sampling
+     * the trajectory.  The samples are handed to sink as they become
+     * available: at every multiple of the request's output step (plus tf), or
+     * at each of the request's explicit output epochs, which are interpolated
+     * from the integrator's dense output.
+     * @param sink - receives the sampled states in the EME2000 frame
+     * @return FinalState containing the keys "rf", "vf", "tf" and
+     *         "evaluations", and the state at full precision
+     * @throws PropagationCancelledException once the request's cancellation
+     *         token is cancelled
+     */
+    public FinalState propagate(Consumer<TimeStampedPVCoordinates> sink) {
+        
+        SpacecraftState final_state;
+        
+        if (request.getOutputStep() > 0) {
 
-        } catch (IllegalArgumentException e) {
+            /*
+             * Fixed step handler: Orekit calls us on the sampling grid while
+             * integrating.  The last grid point may fall short of tf, in which
+             * case the final state is emitted as well.
+             */
+            AbsoluteDate[] last = new AbsoluteDate[1];
+            orbitPropagator.setStepHandler(request.getOutputStep(), state -> {
+                last[0] = state.getDate();
+                sink.accept(state.getPVCoordinates());
+            });
+            watchCancellation();
 
-            e.printStackTrace();
+            final_state = orbitPropagator.propagate(request.getFinalEpoch());
 
-        } catch (OrekitException e) {
+            if (last[0] == null || !last[0].isEqualTo(final_state.getDate())) {
+                sink.accept(final_state.getPVCoordinates());
+            }
 
-            e.printStackTrace();
+        } else {
 
-        }
+            /*
+             * Explicit epochs: keep the dense output of the integration and
+             * interpolate each requested epoch from it afterwards.
+             */
+            EphemerisGenerator generator = orbitPropagator.getEphemerisGenerator();
+            watchCancellation();
+            
+            final_state = orbitPropagator.propagate(request.getFinalEpoch());
+            
+            BoundedPropagator ephemeris = generator.getGeneratedEphemeris();
+            Frame frame = final_state.getFrame();
+            for (AbsoluteDate epoch : request.getOutputEpochs()) {
+                sink.accept(ephemeris.getPVCoordinates(epoch, frame));
+            }
 
-        /*
-         * Stuff the propagation results into a HashMap and return it to the 
-         * caller.
-         */
-        HashMap<String,String> final_hash = new HashMap<String,String>();
+        }
         
-        final_hash.put("rf", String.format("[%f,%f,%s]", 
-                final_state.getPVCoordinates().getPosition().getX(),
-                final_state.getPVCoordinates().getPosition().getY(),
-                final_state.getPVCoordinates().getPosition().getZ()));
+        return(toFinalHash(final_state));
         
-        final_hash.put("vf", String.format("[%f,%f,%s]", 
-                final_state.getPVCoordinates().getVelocity().getX(),
-                final_state.getPVCoordinates().getVelocity().getY(),
-                final_state.getPVCoordinates().getVelocity().getZ()));
+    }
+    
+    /**
+     * Abandon the propagation if the request is already cancelled (it may
+     * have waited out its deadline in the queue), and otherwise check again
+     * after every integration step.  PropagationCancelledException thrown
+     * from the step handler unwinds the integrator: Orekit only wraps the
+     * Hipparchus exceptions.
+     */
+    private void watchCancellation() {
+        Cancellation cancellation = request.getCancellation();
+        cancellation.check();
+        if (cancellation != Cancellation.NONE) {
+            orbitPropagator.getMultiplexer().add(interpolator -> cancellation.check());
+        }
+    }
+    
+    /**
+     * Stuff the propagation results into a FinalState and return it to the 
+     * caller.  "rf" and "vf" are the formatted vectors reported in JSON;
+     * the FinalState keeps the same state as doubles for the binary encoding.
+     */
+    private FinalState toFinalHash(SpacecraftState final_state) {
         
-        final_hash.put("tf", parms.get("tf"));
+        FinalState final_hash = new FinalState(final_state.getPVCoordinates());
+        
+        final_hash.put("rf", formatVector(final_state.getPVCoordinates().getPosition()));
+        final_hash.put("vf", formatVector(final_state.getPVCoordinates().getVelocity()));
+        final_hash.put("tf", request.getFinalEpochText());
+        final_hash.put("evaluations", Integer.toString(getEvaluations()));
         
         return(final_hash);
         
     }
     
+    /**
+     * Format a vector the way results are reported: "[x,y,z]", each component
+     * with Double.toString so that it parses back to the same double.
+     */
+    public static String formatVector(Vector3D v) {
+        return new StringBuilder(64).append('[').append(v.getX()).append(',')
+                .append(v.getY()).append(',').append(v.getZ()).append(']').toString();
+    }
+    
+    /**
+     * Format an ephemeris sample as a HashMap with the keys "t" (UTC epoch),
+     * "r" and "v".
+     */
+    public static HashMap<String,String> formatSample(TimeStampedPVCoordinates pv) {
+        
+        HashMap<String,String> sample = new HashMap<String,String>();
+        
+        sample.put("t", pv.getDate().toString(OrekitContext.getInstance().getUTC()));
+        sample.put("r", formatVector(pv.getPosition()));
+        sample.put("v", formatVector(pv.getVelocity()));
+        
+        return(sample);
+        
+    }
+    
     /**
      * Here is a test case for this class.  Don't call main when using the 
      * class.
@@ -0,0 +1,439 @@
+package org.spaceflightdynamics.tools;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * <p>HTTP load generator for measuring what one server instance sustains.
+ * Drives /orekit/propagate and /orekit/propagate/usage on a running server
+ * with a fixed number of concurrent connections and reports throughput and
+ * latency percentiles.</p>
+ *
+ * <p>With a target rate each connection sends on a fixed schedule and
+ * latency is measured from when a request <em>should</em> have been sent, so
+ * a stalled server is charged for the requests it delayed (coordinated
+ * omission correction).  Without a rate the connections run closed-loop as
+ * fast as the server answers, and only service time is reported.</p>
+ *
+ * <p>Configured via system properties:
+ * <pre>
+ *   load.url         - server base URL (default: http://localhost:8080/SFDaaS)
+ *   load.concurrency - concurrent connections (default: 16)
+ *   load.rate        - target requests/second over all connections, 0 = closed loop (default: 0)
+ *   load.duration    - measured seconds (default: 30)
+ *   load.warmup      - seconds run before measuring (default: 5)
+ *   load.mix         - request mix as kind:weight pairs of propagate and usage (default: propagate:9,usage:1)
+ *   load.keepAlive   - reuse connections (default: true)
+ *   load.cache       - send cf=1 with propagations (default: false)
+ *   load.memcached   - memcached servers sent as ca; without it cf=1 uses the server's in-process cache
+ *   load.distinct    - number of distinct propagations in the mix (default: 100)
+ *   load.replay      - JSONL file of requests to replay instead of the mix
+ *   load.histogram   - file to write the full corrected latency distribution to
+ * </pre></p>
+ *
+ * <p>Replay lines are JSON objects holding either a "uri" (path and query,
+ * relative to load.url) or the propagation parameters themselves, as in a
+ * batch request.  Lines with neither are skipped.</p>
+ *
+ * <em>Example:</em>
+ * <pre>
+ *   java -Dload.concurrency=32 -Dload.rate=500 -Dload.cache=true \
+ *        -cp target/SFDaaS-jar-with-dependencies.jar org.spaceflightdynamics.tools.LoadGenerator
+ * </pre>
+ */
+public class LoadGenerator {
+
+    private static final String BASE_URL = System.getProperty("load.url", "http://localhost:8080/SFDaaS");
+    private static final int CONCURRENCY = Math.max(1, Integer.getInteger("load.concurrency", 16));
+    private static final double RATE = Double.parseDouble(System.getProperty("load.rate", "0"));
+    private static final int DURATION = Integer.getInteger("load.duration", 30);
+    private static final int WARMUP = Integer.getInteger("load.warmup", 5);
+    private static final String MIX = System.getProperty("load.mix", "propagate:9,usage:1");
+    private static final boolean KEEP_ALIVE = Boolean.parseBoolean(System.getProperty("load.keepAlive", "true"));
+    private static final boolean CACHE = Boolean.parseBoolean(System.getProperty("load.cache", "false"));
+    private static final String MEMCACHED = System.getProperty("load.memcached");
+    private static final int DISTINCT = Math.max(1, Integer.getInteger("load.distinct", 100));
+    private static final String REPLAY = System.getProperty("load.replay");
+    private static final String HISTOGRAM_FILE = System.getProperty("load.histogram");
+
+    /*
+     * Latencies are recorded in microseconds, up to one hour.
+     */
+    private static final long HIGHEST_LATENCY = TimeUnit.HOURS.toMicros(1);
+
+    private static final String USAGE_URI = "/orekit/propagate/usage";
+
+    private static final DateTimeFormatter EPOCH_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS");
+
+    private final List<String> uris = new ArrayList<>();
+    private final List<Integer> weights = new ArrayList<>();
+    private final int totalWeight;
+    private final AtomicInteger replayIndex = new AtomicInteger();
+    private final boolean replay;
+
+    private final Map<Integer, LongAdder> statusCounts = new ConcurrentHashMap<>();
+    private final LongAdder errors = new LongAdder();
+
+    private volatile long measureStart;
+    private volatile long end;
+
+    private LoadGenerator(List<String> uris, List<Integer> weights, boolean replay) {
+        this.uris.addAll(uris);
+        this.weights.addAll(weights);
+        this.totalWeight = weights.stream().mapToInt(Integer::intValue).sum();
+        this.replay = replay;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        // HttpURLConnection keeps at most this many idle connections per host
+        System.setProperty("http.maxConnections", Integer.toString(CONCURRENCY));
+        System.setProperty("http.keepAlive", Boolean.toString(KEEP_ALIVE));
+
+        LoadGenerator generator = REPLAY != null ? fromReplay(REPLAY) : fromMix(MIX);
+        generator.run();
+    }
+
+    /*
+     * Builds the request list from the mix: DISTINCT propagations whose final
+     * epochs differ by one minute, so caching sees a bounded key space.
+     */
+    private static LoadGenerator fromMix(String mix) {
+        int propagateWeight = 0;
+        int usageWeight = 0;
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+            if ("propagate".equals(parts[0].trim())) {
+                propagateWeight += weight;
+            } else if ("usage".equals(parts[0].trim())) {
+                usageWeight += weight;
+            } else {
+                throw new IllegalArgumentException("Unknown request kind in load.mix: " + parts[0]);
+            }
+        }
+
+        List<String> uris = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        LocalDateTime tf = LocalDateTime.of(2010, 5, 29, 12, 0);
+        for (int i = 0; i < DISTINCT && propagateWeight > 0; i++) {
+            Map<String, String> parms = new TreeMap<>();
+            parms.put("t0", "2010-05-28T12:00:00.000");
+            parms.put("tf", tf.plusMinutes(i).format(EPOCH_FORMAT));
+            parms.put("r0", "[3198022.67,2901879.73,5142928.95]");
+            parms.put("v0", "[-6129.640631,4489.647187,1284.511245]");
+            uris.add(propagateUri(parms));
+            weights.add(propagateWeight);
+        }
+        if (usageWeight > 0) {
+            uris.add(USAGE_URI);
+            weights.add(usageWeight * DISTINCT);
+        }
+        if (uris.isEmpty()) {
+            throw new IllegalArgumentException("load.mix selects no requests: " + mix);
+        }
+        return new LoadGenerator(uris, weights, false);
+    }
+
+    /*
+     * Reads the requests to replay, in file order.
+     */
+    private static LoadGenerator fromReplay(String file) throws IOException {
+        List<String> uris = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        int skipped = 0;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String uri = line.trim().isEmpty() ? null : replayUri(line);
+                if (uri == null) {
+                    skipped++;
+                    continue;
+                }
+                uris.add(uri);
+                weights.add(1);
+            }
+        }
+        if (uris.isEmpty()) {
+            throw new IllegalArgumentException("No replayable requests in " + file);
+        }
+        System.out.println("Replaying " + uris.size() + " requests from " + file
+                + (skipped > 0 ? " (" + skipped + " lines skipped)" : ""));
+        return new LoadGenerator(uris, weights, true);
+    }
+
+    private static String replayUri(String line) {
+        JsonElement element;
+        try {
+            element = JsonParser.parseString(line);
+        } catch (RuntimeException e) {
+            return null;
+        }
+        if (!element.isJsonObject()) {
+            return null;
+        }
+        JsonObject object = element.getAsJsonObject();
+        if (object.has("uri")) {
+            return object.get("uri").getAsString();
+        }
+        if (!object.has("t0") || !object.has("tf") || !object.has("r0") || !object.has("v0")) {
+            return null;
+        }
+        Map<String, String> parms = new TreeMap<>();
+        for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+            JsonElement value = entry.getValue();
+            if (value.isJsonArray()) {
+                StringBuilder vector = new StringBuilder("[");
+                for (JsonElement component : value.getAsJsonArray()) {
+                    if (vector.length() > 1) {
+                        vector.append(',');
+                    }
+                    vector.append(Double.toString(component.getAsDouble()));
+                }
+                parms.put(entry.getKey(), vector.append(']').toString());
+            } else if (value.isJsonPrimitive()) {
+                parms.put(entry.getKey(), value.getAsString());
+            }
+        }
+        return propagateUri(parms);
+    }
+
+    private static String propagateUri(Map<String, String> parms) {
+        if (CACHE) {
+            parms.put("cf", "1");
+            if (MEMCACHED != null) {
+                parms.put("ca", MEMCACHED);
+            }
+        }
+        StringBuilder uri = new StringBuilder("/orekit/propagate?");
+        for (Map.Entry<String, String> entry : parms.entrySet()) {
+            if (uri.charAt(uri.length() - 1) != '?') {
+                uri.append('&');
+            }
+            uri.append(entry.getKey()).append('=').append(encode(entry.getValue()));
+        }
+        return uri.toString();
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void run() throws Exception {
+        System.out.println("======================================================================");
+        System.out.println("SFDaaS Load Generator");
+        System.out.println("======================================================================");
+        System.out.println("  Target       : " + BASE_URL);
+        System.out.println("  Connections  : " + CONCURRENCY + (KEEP_ALIVE ? " (keep-alive)" : " (close)"));
+        System.out.println("  Rate         : " + (RATE > 0 ? RATE + " req/s" : "closed loop"));
+        System.out.println("  Requests     : " + (replay ? "replay of " + uris.size() : MIX + ", "
+                + DISTINCT + " distinct propagations"));
+        System.out.println("  Caching      : " + (CACHE ? (MEMCACHED != null ? "memcached " + MEMCACHED : "in-process") : "off"));
+        System.out.println("  Duration     : " + WARMUP + " s warm-up + " + DURATION + " s");
+        System.out.println();
+
+        Worker[] workers = new Worker[CONCURRENCY];
+        long start = System.nanoTime();
+        measureStart = start + TimeUnit.SECONDS.toNanos(WARMUP);
+        end = measureStart + TimeUnit.SECONDS.toNanos(DURATION);
+
+        for (int i = 0; i < CONCURRENCY; i++) {
+            workers[i] = new Worker(i, start);
+            workers[i].start();
+        }
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        // Paced workers drain their backlog after the end of the run
+        double elapsed = (Math.max(System.nanoTime(), end) - measureStart) / 1e9;
+
+        Histogram corrected = new Histogram(HIGHEST_LATENCY, 3);
+        Histogram service = new Histogram(HIGHEST_LATENCY, 3);
+        long completed = 0;
+        for (Worker worker : workers) {
+            corrected.add(worker.corrected);
+            service.add(worker.service);
+            completed += worker.completed;
+        }
+
+        report(corrected, service, completed, elapsed);
+    }
+
+    private void report(Histogram corrected, Histogram service, long completed, double elapsed) throws IOException {
+        System.out.println("Results:");
+        System.out.printf("  Completed    : %d requests in %.1f s%n", completed, elapsed);
+        System.out.printf("  Throughput   : %.1f req/s%n", completed / elapsed);
+        System.out.println("  Errors       : " + errors.sum() + " (connection failures)");
+        for (Map.Entry<Integer, LongAdder> entry : new TreeMap<>(statusCounts).entrySet()) {
+            System.out.println("  HTTP " + entry.getKey() + "     : " + entry.getValue().sum());
+        }
+        System.out.println();
+
+        if (RATE > 0) {
+            printPercentiles("Latency (corrected for coordinated omission, ms):", corrected);
+        }
+        printPercentiles("Service time (ms):", service);
+
+        if (HISTOGRAM_FILE != null) {
+            try (PrintStream out = new PrintStream(new FileOutputStream(HISTOGRAM_FILE), false, "UTF-8")) {
+                (RATE > 0 ? corrected : service).outputPercentileDistribution(out, 1000.0);
+            }
+            System.out.println("Latency distribution written to " + HISTOGRAM_FILE);
+        }
+        System.out.println("======================================================================");
+    }
+
+    private static void printPercentiles(String title, Histogram histogram) {
+        System.out.println(title);
+        System.out.printf("  p50          : %.3f%n", histogram.getValueAtPercentile(50.0) / 1000.0);
+        System.out.printf("  p90          : %.3f%n", histogram.getValueAtPercentile(90.0) / 1000.0);
+        System.out.printf("  p99          : %.3f%n", histogram.getValueAtPercentile(99.0) / 1000.0);
+        System.out.printf("  p99.9        : %.3f%n", histogram.getValueAtPercentile(99.9) / 1000.0);
+        System.out.printf("  p99.99       : %.3f%n", histogram.getValueAtPercentile(99.99) / 1000.0);
+        System.out.printf("  max          : %.3f%n", histogram.getMaxValue() / 1000.0);
+        System.out.println();
+    }
+
+    /*
+     * Picks the next request: round robin over a replay, weighted random
+     * otherwise.
+     */
+    private String nextUri(Random random) {
+        if (replay) {
+            return uris.get(Math.floorMod(replayIndex.getAndIncrement(), uris.size()));
+        }
+        int pick = random.nextInt(totalWeight);
+        for (int i = 0; i < uris.size(); i++) {
+            pick -= weights.get(i);
+            if (pick < 0) {
+                return uris.get(i);
+            }
+        }
+        return uris.get(uris.size() - 1);
+    }
+
+    /*
+     * Sends one request, reads the whole response so the connection can be
+     * reused, and returns the status code.
+     */
+    private static int send(String uri, byte[] buffer) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(BASE_URL + uri).openConnection();
+        connection.setUseCaches(false);
+        if (!KEEP_ALIVE) {
+            connection.setRequestProperty("Connection", "close");
+        }
+        int status = connection.getResponseCode();
+        InputStream body = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (body != null) {
+            try (InputStream in = body) {
+                while (in.read(buffer) >= 0) {
+                    // drain
+                }
+            }
+        }
+        if (!KEEP_ALIVE) {
+            connection.disconnect();
+        }
+        return status;
+    }
+
+    /**
+     * One connection's worth of load.  Histograms are per worker and merged
+     * at the end, as Histogram is not thread safe.
+     */
+    private class Worker extends Thread {
+        private final Histogram corrected = new Histogram(HIGHEST_LATENCY, 3);
+        private final Histogram service = new Histogram(HIGHEST_LATENCY, 3);
+        private final int index;
+        private final Random random;
+        private final long start;
+        private long completed;
+
+        Worker(int index, long start) {
+            super("sfdaas-load-" + index);
+            this.index = index;
+            this.random = new Random(index);
+            this.start = start;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[16 * 1024];
+            long interval = RATE > 0 ? (long) (CONCURRENCY * 1e9 / RATE) : 0;
+            // Stagger the connections across one interval
+            long intended = start + (interval * index) / CONCURRENCY;
+
+            while (true) {
+                if (interval > 0) {
+                    // Every request scheduled within the run is sent, however
+                    // late, so a backlog shows up in the corrected latencies
+                    if (intended >= end) {
+                        return;
+                    }
+                    long wait = intended - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                long sent = System.nanoTime();
+                if (interval == 0) {
+                    if (sent >= end) {
+                        return;
+                    }
+                    intended = sent;
+                }
+
+                try {
+                    int status = send(nextUri(random), buffer);
+                    long received = System.nanoTime();
+                    if (intended >= measureStart) {
+                        statusCounts.computeIfAbsent(status, s -> new LongAdder()).increment();
+                        corrected.recordValue(Math.min(HIGHEST_LATENCY, (received - intended) / 1000));
+                        service.recordValue(Math.min(HIGHEST_LATENCY, (received - sent) / 1000));
+                        completed++;
+                    }
+                } catch (IOException e) {
+                    if (intended >= measureStart) {
+                        errors.increment();
+                    }
+                }
+
+                intended += interval;
+            }
+        }
+    }
+}
@@ -1,13 +1,460 @@
 package org.spaceflightdynamics.utils;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import net.spy.memcached.AddrUtil;
 import net.spy.memcached.BinaryConnectionFactory;
 import net.spy.memcached.MemcachedClient;
 
-// PRIVATE DATA
+/**
+ * Two tier cache for propagation results.
+ *
+ * L1 is an in-process, size-bounded map with a per-entry TTL and approximate
+ * LRU eviction, read without locking. It needs no
+ * external service, so single-node deployments get caching without memcached.
+ *
+ * L2 is memcached, reached through a registry of shared, long-lived clients.
+ * Clients are keyed by the normalized server list (the <em>ca</em> request
+ * parameter) so that every request naming the same servers reuses the same
+ * connections and I/O thread. Clients unused for longer than the idle timeout
+ * are shut down by a background task; a client is never closed while a
+ * request is using it.
+ *
+ * The server list comes from the client, so only servers on the
+ * cache.allowedServers list are ever connected to, and at most
+ * cache.maxClients clients are open at once. Requests are checked with
+ * checkServers so that other server lists are refused rather than
+ * silently served without L2.
+ *
+ * Configured via system properties:
+ *   cache.l1.maxEntries    - maximum number of L1 entries (default: 10000, 0 disables L1)
+ *   cache.idleTimeout      - seconds a client may stay unused before it is closed (default: 300)
+ *   cache.allowedServers   - memcached servers requests may name, host:port separated by spaces
+ *                            or commas (default: 127.0.0.1:11211 localhost:11211)
+ *   cache.maxClients       - maximum number of open clients (default: 8, 0 disables L2)
+ */
 public class DataCaching {
-	
-}
+    private final LocalCache localCache;
+    private final Map<String, CachedClient> clients;
+    private final ScheduledExecutorService reaperExecutor;
+    private final long idleTimeoutMillis;
+    private final Set<String> allowedServers;
+    private final int maxClients;
+
+    private final AtomicLong clientsCreated = new AtomicLong();
+    private final AtomicLong clientsClosed = new AtomicLong();
+    private final AtomicLong gets = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong sets = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    public DataCaching() {
+        this(Integer.getInteger("cache.l1.maxEntries", 10000),
+             Long.getLong("cache.idleTimeout", 300L) * 1000L,
+             System.getProperty("cache.allowedServers", "127.0.0.1:11211 localhost:11211"),
+             Integer.getInteger("cache.maxClients", 8));
+    }
+
+    public DataCaching(int maxLocalEntries, long idleTimeoutMillis, String allowedServers, int maxClients) {
+        this.localCache = new LocalCache(Math.max(0, maxLocalEntries));
+        this.clients = new ConcurrentHashMap<>();
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.allowedServers = new TreeSet<>(Arrays.asList(normalizeServers(allowedServers).split(" ")));
+        this.maxClients = Math.max(0, maxClients);
+        this.reaperExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "sfdaas-memcached-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        startReaperTask();
+    }
+
+    /**
+     * Normalizes a memcached server list so that equivalent spellings map to
+     * the same client: entries may be separated by spaces or commas, are
+     * lower-cased, de-duplicated and sorted.
+     */
+    public static String normalizeServers(String servers) {
+        TreeSet<String> addresses = new TreeSet<>();
+        for (String address : servers.trim().split("[\\s,]+")) {
+            if (!address.isEmpty()) {
+                addresses.add(address.toLowerCase());
+            }
+        }
+        return String.join(" ", addresses);
+    }
+
+    /**
+     * Checks that a request may name the given memcached servers: L2 must be
+     * enabled and every server must be on cache.allowedServers.
+     *
+     * @throws IllegalArgumentException naming the first server refused
+     */
+    public void checkServers(String servers) {
+        if (maxClients == 0) {
+            throw new IllegalArgumentException("Memcached caching (ca) is disabled on this server");
+        }
+        for (String address : normalizeServers(servers).split(" ")) {
+            if (!address.isEmpty() && !allowedServers.contains(address)) {
+                throw new IllegalArgumentException("Memcached server not allowed in ca: " + address
+                        + " (see cache.allowedServers)");
+            }
+        }
+    }
+
+    /**
+     * Looks up a key in the in-process (L1) cache.
+     *
+     * @return the cached value, or null if absent or expired
+     */
+    public Object getLocal(String key) {
+        return localCache.get(key);
+    }
+
+    /**
+     * Stores a value in the in-process (L1) cache for at most ttlSeconds.
+     * A ttl of 0 or less stores nothing, as in set.
+     */
+    public void putLocal(String key, Object value, int ttlSeconds) {
+        localCache.put(key, value, ttlSeconds);
+    }
+
+    /**
+     * Returns the shared client for the given server list, creating it on
+     * first use, with one more user: the caller must release it when done.
+     * The client is created outside the registry, so a slow connect does not
+     * hold up lookups of other server lists.
+     *
+     * @throws IOException if a server is not allowed, the client limit is
+     *         reached or the client cannot be created
+     */
+    private CachedClient acquireClient(String servers) throws IOException {
+        String key = normalizeServers(servers);
+        if (key.isEmpty()) {
+            throw new IOException("No memcached server address provided");
+        }
+        for (String address : key.split(" ")) {
+            if (!allowedServers.contains(address)) {
+                throw new IOException("Memcached server not allowed: " + address);
+            }
+        }
+
+        while (true) {
+            CachedClient cached = clients.get(key);
+            if (cached == null) {
+                if (clients.size() >= maxClients) {
+                    throw new IOException("Too many memcached clients open (cache.maxClients=" + maxClients + ")");
+                }
+                CachedClient created = new CachedClient(new MemcachedClient(
+                        new BinaryConnectionFactory(), AddrUtil.getAddresses(key)));
+                cached = clients.putIfAbsent(key, created);
+                if (cached == null) {
+                    clientsCreated.incrementAndGet();
+                    cached = created;
+                } else {
+                    // Another request created one first
+                    created.client.shutdown(0, TimeUnit.SECONDS);
+                }
+            }
+            // Fails only once the reaper has closed it, which then drops it from the registry
+            if (cached.acquire()) {
+                return cached;
+            }
+        }
+    }
+
+    /**
+     * Looks up a key on the given memcached (L2) servers. Connection and
+     * operation failures are counted and reported as a miss so that caching
+     * never fails a request.
+     */
+    public Object get(String servers, String key) {
+        gets.incrementAndGet();
+        try {
+            CachedClient cached = acquireClient(servers);
+            Object value;
+            try {
+                value = cached.client.get(key);
+            } finally {
+                cached.release();
+            }
+            if (value != null) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+            }
+            return value;
+        } catch (IOException | RuntimeException e) {
+            errors.incrementAndGet();
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Stores a value on the given memcached (L2) servers. The write is
+     * asynchronous; failures are counted but otherwise ignored. A ttl of 0 or
+     * less stores nothing: memcached would read 0 as never expiring, and L1
+     * does not store those either.
+     */
+    public void set(String servers, String key, int ttlSeconds, Object value) {
+        if (ttlSeconds <= 0) {
+            return;
+        }
+        sets.incrementAndGet();
+        try {
+            CachedClient cached = acquireClient(servers);
+            try {
+                cached.client.set(key, ttlSeconds, value);
+            } finally {
+                cached.release();
+            }
+        } catch (IOException | RuntimeException e) {
+            errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns connection and operation counters for diagnostics.
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("l1", localCache.getStatistics());
+        stats.put("l2", getRemoteStatistics());
+        return stats;
+    }
+
+    private Map<String, Object> getRemoteStatistics() {
+        Map<String, Object> stats = new HashMap<>();
+        List<String> servers = new ArrayList<>();
+        int available = 0;
+        int unavailable = 0;
+        for (Map.Entry<String, CachedClient> entry : clients.entrySet()) {
+            servers.add(entry.getKey());
+            available += entry.getValue().client.getAvailableServers().size();
+            unavailable += entry.getValue().client.getUnavailableServers().size();
+        }
+        Collections.sort(servers);
+
+        stats.put("clients", servers);
+        stats.put("availableServers", available);
+        stats.put("unavailableServers", unavailable);
+        stats.put("clientsCreated", clientsCreated.get());
+        stats.put("clientsClosed", clientsClosed.get());
+        stats.put("gets", gets.get());
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("sets", sets.get());
+        stats.put("errors", errors.get());
+        return stats;
+    }
+
+    /**
+     * Starts a background task that closes idle clients every 30 seconds.
+     */
+    private void startReaperTask() {
+        reaperExecutor.scheduleAtFixedRate(() -> {
+            closeIdleClients();
+        }, 30, 30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Shuts down clients that have not been used within the idle timeout and
+     * that no request is using.
+     */
+    private void closeIdleClients() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, CachedClient> entry : clients.entrySet()) {
+            CachedClient cached = entry.getValue();
+            if (now - cached.lastUsed > idleTimeoutMillis && cached.close()) {
+                clients.remove(entry.getKey(), cached);
+                cached.client.shutdown(1, TimeUnit.SECONDS);
+                clientsClosed.incrementAndGet();
+            }
+        }
+    }
 
+    /**
+     * Shuts down the reaper and every open client.
+     */
+    public void shutdown() {
+        reaperExecutor.shutdownNow();
+        localCache.clear();
+        for (String key : clients.keySet()) {
+            CachedClient cached = clients.remove(key);
+            if (cached != null) {
+                cached.client.shutdown(1, TimeUnit.SECONDS);
+                clientsClosed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Size-bounded map with per-entry expiry and an approximate LRU policy
+     * (CLOCK). Lookups never lock: they read a ConcurrentHashMap and set the
+     * entry's referenced bit. Once a store takes the map past its bound, a
+     * hand sweeps the entries, dropping expired ones, clearing the bit of
+     * referenced ones and evicting the first one not referenced since the
+     * hand last passed it. Only stores that overflow the bound take the
+     * sweep lock. Expired entries are also dropped when they are looked up.
+     */
+    private static class LocalCache {
+        private final int maxEntries;
+        private final ConcurrentHashMap<String, LocalEntry> entries = new ConcurrentHashMap<>();
+        private final Object sweepLock = new Object();
+        private Iterator<Map.Entry<String, LocalEntry>> hand = Collections.emptyIterator();
+
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private final LongAdder expirations = new LongAdder();
+
+        LocalCache(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        Object get(String key) {
+            LocalEntry entry = entries.get(key);
+            if (entry == null) {
+                misses.increment();
+                return null;
+            }
+            if (entry.expiresAt <= System.currentTimeMillis()) {
+                if (entries.remove(key, entry)) {
+                    expirations.increment();
+                }
+                misses.increment();
+                return null;
+            }
+            // Write only when clear, so hot entries do not bounce their cache line between cores
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+            hits.increment();
+            return entry.value;
+        }
+
+        void put(String key, Object value, int ttlSeconds) {
+            if (maxEntries == 0 || ttlSeconds <= 0) {
+                return;
+            }
+            entries.put(key, new LocalEntry(value, System.currentTimeMillis() + ttlSeconds * 1000L));
+            if (entries.size() > maxEntries) {
+                sweep();
+            }
+        }
+
+        private void sweep() {
+            synchronized (sweepLock) {
+                long now = System.currentTimeMillis();
+                while (entries.size() > maxEntries) {
+                    if (!hand.hasNext()) {
+                        hand = entries.entrySet().iterator();
+                        if (!hand.hasNext()) {
+                            return; // Emptied by concurrent removals
+                        }
+                    }
+                    Map.Entry<String, LocalEntry> candidate = hand.next();
+                    LocalEntry entry = candidate.getValue();
+                    if (entry.expiresAt <= now) {
+                        if (entries.remove(candidate.getKey(), entry)) {
+                            expirations.increment();
+                        }
+                    } else if (entry.referenced) {
+                        entry.referenced = false;
+                    } else if (entries.remove(candidate.getKey(), entry)) {
+                        evictions.increment();
+                    }
+                }
+            }
+        }
+
+        void clear() {
+            entries.clear();
+        }
+
+        Map<String, Object> getStatistics() {
+            Map<String, Object> stats = new HashMap<>();
+            stats.put("size", entries.size());
+            stats.put("maxEntries", maxEntries);
+            stats.put("hits", hits.sum());
+            stats.put("misses", misses.sum());
+            stats.put("evictions", evictions.sum());
+            stats.put("expirations", expirations.sum());
+            return stats;
+        }
+    }
+
+    /**
+     * An L1 value together with its absolute expiry time and whether it has
+     * been looked up since the sweep last passed it.
+     */
+    private static class LocalEntry {
+        private final Object value;
+        private final long expiresAt;
+        private volatile boolean referenced;
+
+        LocalEntry(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * A client together with the time it was last handed out and the number
+     * of requests using it, or -1 once it is closed.
+     */
+    private static class CachedClient {
+        private final MemcachedClient client;
+        private final AtomicInteger users = new AtomicInteger();
+        private volatile long lastUsed;
+
+        CachedClient(MemcachedClient client) {
+            this.client = client;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        /**
+         * Adds a user, unless the client is closed.
+         */
+        boolean acquire() {
+            int count;
+            do {
+                count = users.get();
+                if (count < 0) {
+                    return false;
+                }
+            } while (!users.compareAndSet(count, count + 1));
+            lastUsed = System.currentTimeMillis();
+            return true;
+        }
+
+        void release() {
+            users.decrementAndGet();
+        }
+
+        /**
+         * Marks the client closed if no request is using it.
+         */
+        boolean close() {
+            return users.compareAndSet(0, -1);
+        }
+    }
+}
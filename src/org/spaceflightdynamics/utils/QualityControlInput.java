@@ -1,111 +1,453 @@
 package org.spaceflightdynamics.utils;
 
-import java.net.URLDecoder;
-import java.net.URLEncoder;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-// This class is not used any where else, yet.
-public class QualityControlInput {
-
-	// Year (4 digit only)
-	private static String yyyy_REGEX =
-        	"\\d{4}";
-
-	// Day of Year regex  001-366
-	private static String DOY_REGEX =
-        	"[0-2]\\d[1-9]|0[1-9]0|1\\d0|2\\d0|3[0-5]\\d|36[0-6]";
-
-	// Month regex 01-12
-	private static String mm_REGEX =
-        	"0[1-9]|1[012]";
-
-	// Day of Month regex 01-31
-	private static String dd_REGEX =
-        	"(0[1-9]|[12]\\d|3[01])";
-
-	// Hour regex 00-23
-	private static String hh_REGEX =
-        	"[0-1]\\d|2[0-3]";
-
-	// Min regex 00-59
-	private static String MM_REGEX =
-        	"[0-5]\\d";
-
-	// Seconds regex 00-59.nnnnnnn
-	private static String ss_REGEX =
-        	"[0-5]\\d\\.?[0-9]*";
-
-	private static String tz_REGEX =
-			"[-+]\\d{4}";
-
-	private static String NUMBER_ANY_REGEX =
-        	"[-+]?[0-9]*\\.?[0-9]+(?:[eEdD][-+]?[0-9]+)?";
-
-	private static String NUMBER_FLOATINGPOINT_REGEX =
-			"[-+]?[0-9]*\\.[0-9]+(?:[eEdD][-+]?[0-9]+)?";
-
-    private static String NUMBER_INTEGER_REGEX =
-            "[+-]?\\d+";
-
-    private static String VECTOR_REGEX1 = 
-            "\\[\\s*("+NUMBER_FLOATINGPOINT_REGEX+")\\s*,\\s*+("+NUMBER_FLOATINGPOINT_REGEX+")\\s*,\\s*("+NUMBER_FLOATINGPOINT_REGEX+")\\s*\\]";
-
-    private static String VECTOR_REGEX2 = 
-            "\\[\\s*("+
-            NUMBER_ANY_REGEX +
-            ")\\s*,\\s*+("+
-            NUMBER_ANY_REGEX +
-            ")\\s*,\\s*(" +
-            NUMBER_ANY_REGEX +
-            ")\\s*\\]";
-
-    private static String DATE_ISO_REGEX =
-    		"("+ yyyy_REGEX + "){1}?-(((" + mm_REGEX + "){1}?-("+ dd_REGEX + "){1}?)|(" + DOY_REGEX + "){1}?)T(" + 
-                 hh_REGEX + "){1}?:(" + MM_REGEX + "){1}?:(" + ss_REGEX + "){1}?(" + tz_REGEX + ")?";
-
-    private static String r0 = "[3198022.67,2901879.73,+5142928.95e+00]";
-    private static String v0 = "[-6129.640631,4489.647187,1284.511245]";
-    private static String date0 = "2011-12-02T23:01:02.0000+0400";
-    
+import org.hipparchus.geometry.euclidean.threed.Vector3D;
+import org.orekit.errors.OrekitException;
+import org.orekit.time.AbsoluteDate;
+import org.orekit.time.DateComponents;
+import org.orekit.time.TimeComponents;
+import org.orekit.time.TimeScale;
+
+/**
+ * Parses and validates request parameters with a hand-written scanner over
+ * the parameter text: no regular expressions, and no substrings on the
+ * common path.
+ *
+ * Accepted forms:
+ *   numbers - [+-][digits].digits or [+-]digits, then [(e|E|d|D)[+-]digits]
+ *   vectors - "[x, y, z]" with any whitespace around the numbers
+ *   epochs  - YYYY-MM-DD or YYYY-DDD (day of year), optionally followed by
+ *             THH:MM[:SS[.fff]] and a zone Z, +HH, +HHMM or +HH:MM.  UTC is
+ *             assumed without a zone.  A '+' turned into a space by URL
+ *             decoding is accepted as '+'.
+ *
+ * Every failure is an IllegalArgumentException naming the parameter, the
+ * value, what was expected and where, which the HTTP layer reports as 400.
+ */
+public final class QualityControlInput {
+
     /*
-     * Problems:
-     * 	1) + is rendered as a space by Tomcat, replacing + with %2B in URL works but that's not natural
-     *  2) space in URL creates an invalid KEY for memcached.  Perhaps I should delete spaces!
-     *  3) using %2B when using curl is ok for memecached, because it converts it to + !!!
-     *  4) curl requires escaping [ and ], i.e. \[ and \]
+     * Powers of ten that are exact doubles.  A decimal with at most 15
+     * significant digits scaled by one of them is correctly rounded by a
+     * single multiplication or division.
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private static final int EXACT_DIGITS = 15;
+
+    private QualityControlInput() {
+    }
+
+    /**
+     * Parses a finite number.
+     */
+    public static double parseNumber(String name, CharSequence value) {
+        Scanner scanner = new Scanner("number", name, value, 0, length(name, value));
+        scanner.skipSpaces();
+        double number = scanner.number();
+        scanner.skipSpaces();
+        scanner.expectEnd();
+        return number;
+    }
+
+    /**
+     * Parses a decimal integer that fits in an int.
+     */
+    public static int parseInteger(String name, CharSequence value) {
+        Scanner scanner = new Scanner("integer", name, value, 0, length(name, value));
+        scanner.skipSpaces();
+        boolean negative = scanner.sign();
+        if (!scanner.isDigit()) {
+            throw scanner.error("a digit");
+        }
+        long number = 0;
+        while (scanner.isDigit()) {
+            number = number * 10 + scanner.next() - '0';
+            if (number > Integer.MAX_VALUE + 1L) {
+                throw scanner.error("an integer between " + Integer.MIN_VALUE + " and " + Integer.MAX_VALUE);
+            }
+        }
+        number = negative ? -number : number;
+        if (number > Integer.MAX_VALUE) {
+            throw scanner.error("an integer between " + Integer.MIN_VALUE + " and " + Integer.MAX_VALUE);
+        }
+        scanner.skipSpaces();
+        scanner.expectEnd();
+        return (int) number;
+    }
+
+    /**
+     * Parses a vector of the form "[x, y, z]".
+     */
+    public static Vector3D parseVector(String name, CharSequence value) {
+        Scanner scanner = new Scanner("vector", name, value, 0, length(name, value));
+        scanner.skipSpaces();
+        scanner.expect('[');
+        scanner.skipSpaces();
+        double x = scanner.number();
+        scanner.skipSpaces();
+        scanner.expect(',');
+        scanner.skipSpaces();
+        double y = scanner.number();
+        scanner.skipSpaces();
+        scanner.expect(',');
+        scanner.skipSpaces();
+        double z = scanner.number();
+        scanner.skipSpaces();
+        scanner.expect(']');
+        scanner.skipSpaces();
+        scanner.expectEnd();
+        return new Vector3D(x, y, z);
+    }
+
+    /**
+     * Parses an epoch.
+     *
+     * @param utc - time scale of epochs given without a zone
      */
-    public static void main(String[] args) {
-    	String REGEX   = VECTOR_REGEX2;
-    	REGEX          = DATE_ISO_REGEX;
-    	String toMatch = date0;
-    	
-        Pattern pattern = Pattern.compile(REGEX);        
-        Matcher matcher = pattern.matcher(toMatch);
-        		
-    	System.out.println(REGEX);
-    	
-        if (!matcher.find()) {
-        	
-            System.out.println("Couldn't match "+ toMatch + " the position parameter");
-            
+    public static AbsoluteDate parseEpoch(String name, CharSequence value, TimeScale utc) {
+        return parseEpoch(name, value, 0, length(name, value), utc);
+    }
+
+    /**
+     * Parses the epoch between start (inclusive) and end (exclusive) of value,
+     * so that a list can be parsed in place.
+     *
+     * @param utc - time scale of epochs given without a zone
+     */
+    public static AbsoluteDate parseEpoch(String name, CharSequence value, int start, int end, TimeScale utc) {
+        Scanner scanner = new Scanner("epoch", name, value, start, end);
+        scanner.skipSpaces();
+
+        int year = scanner.digits(4, "a 4 digit year");
+        scanner.expect('-');
+        DateComponents date;
+        if (scanner.digitsAhead() == 3) {
+            int dayOfYear = scanner.digits(3, "a 3 digit day of year");
+            if (dayOfYear < 1 || dayOfYear > (isLeapYear(year) ? 366 : 365)) {
+                throw scanner.error("a day of year between 001 and " + (isLeapYear(year) ? 366 : 365), -3);
+            }
+            date = new DateComponents(year, dayOfYear);
         } else {
-        	
-            System.out.println("Matched " + toMatch + " the position parameter");
-            
-        }
-
-//        System.out.println(toMatch);
-   
-        String _URL="http://localhost:8080/SFDaaS/orekit/propagate2?cf=1&t0=2010-05-28T12:00:00.000&tf=2010-05-29T12:00:00.000&r0=[+3198022.67,2901879.73,%2B5142928.95e%2B00]&v0=[-6129.640631,4489.647187,1284.511245]";
-        _URL="http://localhost:8080/SFDaaS/orekit/propagate2?cf=1&t0=2010-05-28T12:00:00.000&tf=2010-05-29T12:00:00.000&r0=[+3198022.67,2901879.73,%2B5142928.95e%2B00]&v0=[-6129.640631,4489.647187,1284.511245]";
-        String encoded_URL=URLEncoder.encode(_URL);
-        String decoded_URL=URLDecoder.decode(_URL);
-        System.out.println(_URL);
-        System.out.println(encoded_URL);
-        System.out.println(decoded_URL);
-        
+            int month = scanner.digits(2, "a 2 digit month");
+            if (month < 1 || month > 12) {
+                throw scanner.error("a month between 01 and 12", -2);
+            }
+            scanner.expect('-');
+            int day = scanner.digits(2, "a 2 digit day");
+            if (day < 1 || day > daysInMonth(year, month)) {
+                throw scanner.error("a day between 01 and " + daysInMonth(year, month), -2);
+            }
+            date = new DateComponents(year, month, day);
+        }
+
+        int hour = 0;
+        int minute = 0;
+        double second = 0;
+        int offsetMinutes = 0;
+        if (scanner.peek() == 'T') {
+            scanner.next();
+            hour = scanner.digits(2, "a 2 digit hour");
+            if (hour > 23) {
+                throw scanner.error("an hour between 00 and 23", -2);
+            }
+            scanner.expect(':');
+            minute = scanner.digits(2, "2 digit minutes");
+            if (minute > 59) {
+                throw scanner.error("minutes between 00 and 59", -2);
+            }
+            if (scanner.peek() == ':') {
+                scanner.next();
+                int wholeSeconds = scanner.digits(2, "2 digit seconds");
+                // 60 is only valid during a leap second, which the time scale checks
+                if (wholeSeconds > 60) {
+                    throw scanner.error("seconds between 00 and 60", -2);
+                }
+                second = wholeSeconds;
+                if (scanner.peek() == '.') {
+                    scanner.next();
+                    second += scanner.fraction();
+                }
+            }
+            offsetMinutes = scanner.zone();
+        }
+        scanner.skipSpaces();
+        scanner.expectEnd();
+
+        try {
+            AbsoluteDate epoch = new AbsoluteDate(date, new TimeComponents(hour, minute, second), utc);
+            return offsetMinutes == 0 ? epoch : epoch.shiftedBy(-60.0 * offsetMinutes);
+        } catch (IllegalArgumentException | OrekitException e) {
+            throw new IllegalArgumentException("Invalid epoch for " + name + ": "
+                    + value.subSequence(start, end) + " (" + e.getMessage() + ")", e);
+        }
     }
-    
-} 
 
+    private static int length(String name, CharSequence value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter " + name);
+        }
+        return value.length();
+    }
+
+    private static boolean isLeapYear(int year) {
+        return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return isLeapYear(year) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /**
+     * Cursor over one parameter value.  Positions in error messages are
+     * 1-based and relative to the start of the value being parsed.
+     */
+    private static final class Scanner {
+        private final String kind;
+        private final String name;
+        private final CharSequence text;
+        private final int start;
+        private final int end;
+        private int pos;
+
+        Scanner(String kind, String name, CharSequence text, int start, int end) {
+            this.kind = kind;
+            this.name = name;
+            this.text = text;
+            this.start = start;
+            this.end = end;
+            this.pos = start;
+        }
+
+        /*
+         * The current character, or 0 at the end.
+         */
+        char peek() {
+            return pos < end ? text.charAt(pos) : 0;
+        }
+
+        char next() {
+            return text.charAt(pos++);
+        }
+
+        boolean isDigit() {
+            return isDigitAt(pos);
+        }
+
+        boolean isDigitAt(int index) {
+            return index < end && text.charAt(index) >= '0' && text.charAt(index) <= '9';
+        }
+
+        void skipSpaces() {
+            while (pos < end && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        void expect(char c) {
+            if (peek() != c) {
+                throw error("'" + c + "'");
+            }
+            pos++;
+        }
+
+        void expectEnd() {
+            if (pos < end) {
+                throw error("the end of the value");
+            }
+        }
+
+        /*
+         * Consumes an optional sign and returns true if it was '-'.
+         */
+        boolean sign() {
+            char c = peek();
+            if (c == '+' || c == '-') {
+                pos++;
+                return c == '-';
+            }
+            return false;
+        }
+
+        int digitsAhead() {
+            int count = 0;
+            while (isDigitAt(pos + count)) {
+                count++;
+            }
+            return count;
+        }
+
+        /*
+         * Exactly count digits.
+         */
+        int digits(int count, String expected) {
+            if (digitsAhead() < count) {
+                throw error(expected);
+            }
+            int number = 0;
+            for (int i = 0; i < count; i++) {
+                number = number * 10 + next() - '0';
+            }
+            return number;
+        }
+
+        /*
+         * The digits after a decimal point, as a fraction.
+         */
+        double fraction() {
+            if (!isDigit()) {
+                throw error("a digit after '.'");
+            }
+            long mantissa = 0;
+            int scale = 0;
+            while (isDigit()) {
+                int digit = next() - '0';
+                if (scale < EXACT_DIGITS) {
+                    mantissa = mantissa * 10 + digit;
+                    scale++;
+                }
+            }
+            return mantissa / POWERS_OF_TEN[scale];
+        }
+
+        /*
+         * An optional zone: Z, or a sign followed by HH, HHMM or HH:MM.
+         * Returns the offset from UTC in minutes.
+         */
+        int zone() {
+            char c = peek();
+            if (c == 'Z') {
+                pos++;
+                return 0;
+            }
+            boolean space = c == ' ' && isDigitAt(pos + 1);
+            if (c != '+' && c != '-' && !space) {
+                return 0;
+            }
+            pos++;
+            int hours = digits(2, "a 2 digit zone hour");
+            if (hours > 18) {
+                throw error("a zone hour between 00 and 18", -2);
+            }
+            int minutes = 0;
+            if (peek() == ':') {
+                pos++;
+                minutes = digits(2, "2 digit zone minutes");
+            } else if (isDigit()) {
+                minutes = digits(2, "2 digit zone minutes");
+            }
+            if (minutes > 59) {
+                throw error("zone minutes between 00 and 59", -2);
+            }
+            int offset = hours * 60 + minutes;
+            return c == '-' ? -offset : offset;
+        }
+
+        /*
+         * A finite decimal number.  Up to 15 significant digits with a small
+         * exponent are converted exactly here; anything longer falls back to
+         * Double.parseDouble on the scanned characters.
+         */
+        double number() {
+            int first = pos;
+            boolean negative = sign();
+            long mantissa = 0;
+            int significant = 0;
+            int exponent = 0;
+            boolean anyDigit = false;
+
+            while (isDigit()) {
+                int digit = next() - '0';
+                anyDigit = true;
+                if (significant < 18) {
+                    mantissa = mantissa * 10 + digit;
+                    if (mantissa != 0) {
+                        significant++;
+                    }
+                } else {
+                    significant++;
+                    exponent++;
+                }
+            }
+            if (peek() == '.') {
+                pos++;
+                if (!isDigit()) {
+                    throw error("a digit after '.'");
+                }
+                while (isDigit()) {
+                    int digit = next() - '0';
+                    anyDigit = true;
+                    if (significant < 18) {
+                        mantissa = mantissa * 10 + digit;
+                        exponent--;
+                        if (mantissa != 0) {
+                            significant++;
+                        }
+                    } else {
+                        significant++;
+                    }
+                }
+            }
+            if (!anyDigit) {
+                pos = first;
+                throw error("a number");
+            }
+
+            char c = peek();
+            if (c == 'e' || c == 'E' || c == 'd' || c == 'D') {
+                pos++;
+                boolean negativeExponent = sign();
+                if (!isDigit()) {
+                    throw error("exponent digits");
+                }
+                int value = 0;
+                while (isDigit()) {
+                    // Anything this large over- or underflows anyway
+                    value = Math.min(value * 10 + next() - '0', 100000);
+                }
+                exponent += negativeExponent ? -value : value;
+            }
+
+            double number;
+            if (significant <= EXACT_DIGITS && exponent >= -22 && exponent <= 22) {
+                number = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+                number = negative ? -number : number;
+            } else {
+                String digits = text.subSequence(first, pos).toString().replace('d', 'e').replace('D', 'E');
+                number = Double.parseDouble(digits);
+            }
+            if (Double.isInfinite(number)) {
+                pos = first;
+                throw error("a finite number");
+            }
+            return number;
+        }
+
+        IllegalArgumentException error(String expected) {
+            return error(expected, 0);
+        }
+
+        /*
+         * Reports what was expected at the current position, moved back by
+         * offset characters when the value just read is out of range.
+         */
+        IllegalArgumentException error(String expected, int offset) {
+            int at = pos + offset;
+            String found = at < end ? "'" + text.charAt(at) + "'" : "the end of the value";
+            return new IllegalArgumentException("Invalid " + kind + " for " + name + ": "
+                    + text.subSequence(start, end) + " (expected " + expected + " at character "
+                    + (at - start + 1) + ", found " + found + ")");
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package org.spaceflightdynamics.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hipparchus.geometry.euclidean.threed.Vector3D;
+
+import org.junit.Test;
+
+import org.orekit.time.AbsoluteDate;
+import org.orekit.time.DateComponents;
+import org.orekit.time.TimeComponents;
+import org.orekit.time.TimeScale;
+import org.orekit.time.TimeScalesFactory;
+
+/**
+ * Boundary cases of the QualityControlInput scanner, checked against
+ * Double.parseDouble and against the regular expressions it replaced.
+ */
+public class QualityControlInputTest {
+
+    // The number, vector and epoch patterns the scanner replaced
+    private static final String OLD_NUMBER_REGEX = "[-+]?[0-9]*\\.?[0-9]+(?:[eEdD][-+]?[0-9]+)?";
+    private static final Pattern OLD_NUMBER = Pattern.compile(OLD_NUMBER_REGEX);
+    private static final Pattern OLD_VECTOR = Pattern.compile("\\[\\s*(" + OLD_NUMBER_REGEX + ")\\s*,\\s*+("
+            + OLD_NUMBER_REGEX + ")\\s*,\\s*(" + OLD_NUMBER_REGEX + ")\\s*\\]");
+    private static final Pattern OLD_EPOCH = Pattern.compile("(\\d{4})-(?:(0[1-9]|1[012])-(0[1-9]|[12]\\d|3[01])"
+            + "|([0-2]\\d[1-9]|0[1-9]0|1\\d0|2\\d0|3[0-5]\\d|36[0-6]))T([0-1]\\d|2[0-3]):([0-5]\\d):([0-5]\\d\\.?[0-9]*)"
+            + "([-+]\\d{4})?");
+
+    // Epochs are compared in TAI, which needs no leap second data
+    private static final TimeScale TAI = TimeScalesFactory.getTAI();
+
+    /*
+     * Numbers on both sides of the exact fast path (15 significant digits,
+     * |exponent| <= 22) and of the Double.parseDouble fallback.
+     */
+    private static final String[] NUMBERS = {
+        "0", "-0", "+0", "0.0", "-0.0", "00012", "1", "+1", "-1", ".5", "-.5", "+.5",
+        "3198022.67", "-6129.640631", "+5142928.95e+00", "1.5d3", "1.5D-3", "2E10",
+        "123456789012345", "1234567890123456", "12345678901234567890123",
+        "0.123456789012345", "0.1234567890123456", "0.000000000000000000000001",
+        "999999999999999e22", "999999999999999e23", "1e22", "1e23", "1e-22", "1e-23",
+        "4.9e-324", "2.4703282292062327e-324", "1.7976931348623157e308", "1e-400",
+        "9007199254740993", "0.1", "0.2", "0.3", "2.2250738585072014E-308",
+        "123.456e-7", "7e0", "7e-0", "7e+0", "0e999999"
+    };
+
+    private static final String[] NOT_NUMBERS = {
+        "", " ", "+", "-", ".", "e5", "+e5", "1e", "1e+", "1e-", "--1", "+-1", "1.", "1.e5",
+        "1..5", "1.5.2", "1 5", "1,5", "0x10", "NaN", "Infinity", "-Infinity", "1e400",
+        "1.7976931348623159e308", "1f", "1.0d", "five", "1_000"
+    };
+
+    @Test
+    public void numbersMatchDoubleParseDouble() {
+        for (String text : NUMBERS) {
+            assertTrue(text + " matched by the old pattern", OLD_NUMBER.matcher(text).matches());
+            assertSameDouble(text, parseDouble(text), QualityControlInput.parseNumber("x", text));
+        }
+    }
+
+    @Test
+    public void numbersRejectedByTheOldPatternAreRejected() {
+        for (String text : NOT_NUMBERS) {
+            if (!text.equals("1e400") && !text.equals("1.7976931348623159e308")) {
+                assertFalse(text + " matched by the old pattern", OLD_NUMBER.matcher(text).matches());
+            }
+            assertThrows(text, IllegalArgumentException.class, () -> QualityControlInput.parseNumber("x", text));
+        }
+    }
+
+    @Test
+    public void numbersMayBeSurroundedBySpaces() {
+        assertEquals(1.5, QualityControlInput.parseNumber("x", "  1.5\t"), 0);
+    }
+
+    @Test
+    public void fastPathIsCorrectlyRounded() {
+        // Every 15 digit mantissa over the whole exact exponent range
+        long[] mantissas = {1, 7, 123456789012345L, 999999999999999L, 314159265358979L, 100000000000001L};
+        for (long mantissa : mantissas) {
+            for (int exponent = -22; exponent <= 22; exponent++) {
+                String text = mantissa + "e" + exponent;
+                assertSameDouble(text, Double.parseDouble(text), QualityControlInput.parseNumber("x", text));
+                String negative = "-" + text;
+                assertSameDouble(negative, Double.parseDouble(negative),
+                        QualityControlInput.parseNumber("x", negative));
+            }
+        }
+    }
+
+    @Test
+    public void integers() {
+        assertEquals(42, QualityControlInput.parseInteger("ct", " 42 "));
+        assertEquals(5, QualityControlInput.parseInteger("ct", "+5"));
+        assertEquals(0, QualityControlInput.parseInteger("ct", "-0"));
+        assertEquals(Integer.MAX_VALUE, QualityControlInput.parseInteger("ct", "2147483647"));
+        assertEquals(Integer.MIN_VALUE, QualityControlInput.parseInteger("ct", "-2147483648"));
+        for (String text : new String[] {"", "+", "2147483648", "-2147483649", "99999999999999999999",
+                                         "4.0", "1e3", "0x10", "1 2"}) {
+            assertThrows(text, IllegalArgumentException.class, () -> QualityControlInput.parseInteger("ct", text));
+        }
+    }
+
+    @Test
+    public void vectorsMatchTheOldPattern() {
+        String[] vectors = {
+            "[3198022.67,2901879.73,+5142928.95e+00]",
+            "[-6129.640631,4489.647187,1284.511245]",
+            "[1.0, 2.0, 3.0]",
+            "[ 1.0 ,2.0,\t3.0 ]",
+            "[.5,-.5,+.5]",
+            "[1.5d3,1.5D-3,2.0E10]",
+            "[1.2345678901234567,0.1,1.0e-30]",
+            "[7000000,0,-1]"
+        };
+        for (String text : vectors) {
+            Matcher matcher = OLD_VECTOR.matcher(text);
+            assertTrue(text + " matched by the old pattern", matcher.matches());
+            Vector3D vector = QualityControlInput.parseVector("r0", text);
+            assertSameDouble(text, parseDouble(matcher.group(1)), vector.getX());
+            assertSameDouble(text, parseDouble(matcher.group(2)), vector.getY());
+            assertSameDouble(text, parseDouble(matcher.group(3)), vector.getZ());
+        }
+    }
+
+    @Test
+    public void vectorsMayBeSurroundedBySpaces() {
+        Vector3D vector = QualityControlInput.parseVector("r0", " [7000000, 0,-1]\t");
+        assertEquals(7000000, vector.getX(), 0);
+        assertEquals(0, vector.getY(), 0);
+        assertEquals(-1, vector.getZ(), 0);
+    }
+
+    @Test
+    public void malformedVectors() {
+        String[] malformed = {
+            "", "[]", "[1.0,2.0]", "[1.0,2.0,3.0,4.0]", "1.0,2.0,3.0", "[1.0;2.0;3.0]", "[1.0,,3.0]",
+            "[1.0,2.0,3.0", "1.0,2.0,3.0]", "[1.0,2.0,3.0]x", "x[1.0,2.0,3.0]", "[a,1,2]", "[1.,2.0,3.0]",
+            "[1.0,2.0,1e400]", "(1.0,2.0,3.0)"
+        };
+        for (String text : malformed) {
+            assertThrows(text, IllegalArgumentException.class, () -> QualityControlInput.parseVector("r0", text));
+        }
+    }
+
+    @Test
+    public void errorsNameTheParameterAndThePosition() {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> QualityControlInput.parseVector("r0", "[1.0,2.0]"));
+        assertEquals("Invalid vector for r0: [1.0,2.0] (expected ',' at character 9, found ']')", e.getMessage());
+
+        e = assertThrows(IllegalArgumentException.class, () -> QualityControlInput.parseNumber("step", "1.5x"));
+        assertEquals("Invalid number for step: 1.5x (expected the end of the value at character 4, found 'x')",
+                e.getMessage());
+
+        e = assertThrows(IllegalArgumentException.class, () -> QualityControlInput.parseVector("v0", null));
+        assertEquals("Missing parameter v0", e.getMessage());
+    }
+
+    @Test
+    public void calendarEpochs() {
+        assertEpoch(new AbsoluteDate(2010, 5, 28, 12, 0, 0.0, TAI), "2010-05-28T12:00:00.000");
+        assertEpoch(new AbsoluteDate(2010, 5, 28, 12, 0, 0.0, TAI), "2010-05-28T12:00");
+        assertEpoch(new AbsoluteDate(2010, 5, 28, 0, 0, 0.0, TAI), "2010-05-28");
+        assertEpoch(new AbsoluteDate(2010, 5, 28, 23, 59, 59.125, TAI), "2010-05-28T23:59:59.125");
+        assertEpoch(new AbsoluteDate(2012, 2, 29, 0, 0, 0.0, TAI), "2012-02-29");
+        assertEpoch(new AbsoluteDate(2010, 5, 28, 12, 0, 0.0, TAI), "  2010-05-28T12:00:00  ");
+    }
+
+    @Test
+    public void epochsMatchTheOldPattern() {
+        String[] epochs = {
+            "2011-12-02T23:01:02.0000+0400", "2010-05-28T12:00:00", "2010-05-28T12:00:00.000",
+            "2000-01-01T00:00:00.5", "1999-12-31T23:59:59.999999", "2010-148T12:00:00", "2012-366T00:00:00",
+            "2010-01-10T06:30:15-0530"
+        };
+        for (String text : epochs) {
+            Matcher matcher = OLD_EPOCH.matcher(text);
+            assertTrue(text + " matched by the old pattern", matcher.matches());
+            int year = Integer.parseInt(matcher.group(1));
+            double second = Double.parseDouble(matcher.group(7));
+            AbsoluteDate expected = matcher.group(4) != null
+                    ? new AbsoluteDate(new DateComponents(year, Integer.parseInt(matcher.group(4))),
+                            new TimeComponents(Integer.parseInt(matcher.group(5)),
+                                    Integer.parseInt(matcher.group(6)), second), TAI)
+                    : new AbsoluteDate(year, Integer.parseInt(matcher.group(2)), Integer.parseInt(matcher.group(3)),
+                            Integer.parseInt(matcher.group(5)), Integer.parseInt(matcher.group(6)), second, TAI);
+            if (matcher.group(8) != null) {
+                int zone = Integer.parseInt(matcher.group(8).substring(1));
+                int minutes = zone / 100 * 60 + zone % 100;
+                expected = expected.shiftedBy(matcher.group(8).charAt(0) == '-' ? 60.0 * minutes : -60.0 * minutes);
+            }
+            assertEpoch(expected, text);
+        }
+    }
+
+    @Test
+    public void dayOfYearEpochs() {
+        assertEpoch(new AbsoluteDate(2010, 5, 28, 12, 0, 0.0, TAI), "2010-148T12:00:00.000");
+        assertEpoch(new AbsoluteDate(2011, 1, 1, 0, 0, 0.0, TAI), "2011-001");
+        assertEpoch(new AbsoluteDate(2011, 12, 31, 0, 0, 0.0, TAI), "2011-365");
+        assertEpoch(new AbsoluteDate(2012, 12, 31, 0, 0, 0.0, TAI), "2012-366");
+        for (String text : new String[] {"2011-000", "2011-366", "2012-367", "2011-1", "2011-01"}) {
+            assertInvalidEpoch(text);
+        }
+    }
+
+    @Test
+    public void zoneOffsets() {
+        AbsoluteDate utc = new AbsoluteDate(2011, 12, 2, 19, 1, 2.0, TAI);
+        assertEpoch(utc, "2011-12-02T23:01:02.0000+0400");
+        assertEpoch(utc, "2011-12-02T23:01:02+04:00");
+        assertEpoch(utc, "2011-12-02T23:01:02+04");
+        // A '+' that URL decoding turned into a space
+        assertEpoch(utc, "2011-12-02T23:01:02 0400");
+        assertEpoch(new AbsoluteDate(2011, 12, 3, 0, 31, 2.0, TAI), "2011-12-02T19:01:02-05:30");
+        assertEpoch(new AbsoluteDate(2011, 12, 2, 19, 1, 2.0, TAI), "2011-12-02T19:01:02Z");
+        assertEpoch(new AbsoluteDate(2011, 12, 2, 19, 1, 2.0, TAI), "2011-12-02T19:01:02 ");
+        for (String text : new String[] {"2011-12-02T19:01:02+4", "2011-12-02T19:01:02+19",
+                                         "2011-12-02T19:01:02+04:60", "2011-12-02T19:01:02+04:0",
+                                         "2011-12-02T19:01:02ZZ", "2011-12-02T19:01:02+0400x"}) {
+            assertInvalidEpoch(text);
+        }
+    }
+
+    @Test
+    public void malformedEpochs() {
+        String[] malformed = {
+            "", "2010", "10-05-28", "2010-5-28", "2010-05-8", "2010/05/28", "2010-00-28", "2010-13-01",
+            "2010-05-00", "2010-05-32", "2011-02-29", "2010-04-31", "2010-05-28T", "2010-05-28T12",
+            "2010-05-28T24:00:00", "2010-05-28T12:60:00", "2010-05-28T12:00:61", "2010-05-28T12:00:00.",
+            "2010-05-28T1:00:00", "2010-05-28 12:00:00", "2010-05-28T12:00:00.000x", "x2010-05-28"
+        };
+        for (String text : malformed) {
+            assertInvalidEpoch(text);
+        }
+    }
+
+    @Test
+    public void epochsAreParsedInPlace() {
+        String list = "2010-05-28T12:00:00,2010-148T13:00:00";
+        assertEquals(0, new AbsoluteDate(2010, 5, 28, 12, 0, 0.0, TAI)
+                .durationFrom(QualityControlInput.parseEpoch("epochs", list, 0, 19, TAI)), 0);
+        assertEquals(0, new AbsoluteDate(2010, 5, 28, 13, 0, 0.0, TAI)
+                .durationFrom(QualityControlInput.parseEpoch("epochs", list, 20, list.length(), TAI)), 0);
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> QualityControlInput.parseEpoch("epochs", "2010-05-28,2010-05-32", 11, 21, TAI));
+        assertEquals("Invalid epoch for epochs: 2010-05-32 (expected a day between 01 and 31 at character 9, "
+                + "found '3')", e.getMessage());
+    }
+
+    /*
+     * Double.parseDouble with the Fortran exponent letters the scanner also takes.
+     */
+    private static double parseDouble(String text) {
+        return Double.parseDouble(text.replace('d', 'e').replace('D', 'E'));
+    }
+
+    /*
+     * Bit for bit, so that -0.0 and 0.0 differ.
+     */
+    private static void assertSameDouble(String text, double expected, double actual) {
+        assertEquals(text, Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+    }
+
+    private static void assertEpoch(AbsoluteDate expected, String text) {
+        assertEquals(text, 0, expected.durationFrom(QualityControlInput.parseEpoch("t0", text, TAI)), 0);
+    }
+
+    private static void assertInvalidEpoch(String text) {
+        assertThrows(text, IllegalArgumentException.class, () -> QualityControlInput.parseEpoch("t0", text, TAI));
+    }
+}